@@ -1,3 +1,24 @@
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
+
 // Author - Given Lepita
 
 /*
@@ -50,17 +71,732 @@ class OnlineRadioStream implements OnlineRadio {
     }
 }
 
-// Adapter to convert OnlineRadio to MediaPlayer
+// Source of the raw bytes behind an online radio station
+interface RadioStreamSource {
+    InputStream open(String radioStation) throws IOException;
+}
+
+// Radio stream source that fetches the station over HTTP. Connecting and every read are bounded by
+// timeouts, so a stalled station fails the stream with an IOException instead of hanging its reader.
+class HttpRadioStreamSource implements RadioStreamSource {
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+
+    public HttpRadioStreamSource() {
+        this(5_000, 10_000);
+    }
+
+    public HttpRadioStreamSource(int connectTimeoutMillis, int readTimeoutMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+    }
+
+    @Override
+    public InputStream open(String radioStation) throws IOException {
+        URLConnection connection = new URL(radioStation).openConnection();
+        connection.setConnectTimeout(connectTimeoutMillis);
+        connection.setReadTimeout(readTimeoutMillis);
+        return connection.getInputStream();
+    }
+}
+
+// Bounded ring buffer that absorbs network jitter between the prefetch reader and playback.
+// Reads are held back until the buffer fills to its low-water mark, at the start and again after it runs
+// dry mid-stream. A stall counts as an underrun only if data then resumes; running dry just before the end
+// of the stream is not an underrun.
+class JitterBuffer {
+    private final byte[] ring;
+    private final int lowWaterMark;
+    private int readIndex;
+    private int depth;
+    private boolean endOfStream;
+    private IOException failure;
+    private boolean filling = true;
+    private boolean stalled;
+    private long underruns;
+
+    public JitterBuffer(int capacity, int lowWaterMark) {
+        if (lowWaterMark <= 0 || lowWaterMark > capacity) {
+            throw new IllegalArgumentException("Low-water mark must be between 1 and the buffer capacity");
+        }
+        this.ring = new byte[capacity];
+        this.lowWaterMark = lowWaterMark;
+    }
+
+    // An empty buffer with the same capacity and low-water mark
+    public JitterBuffer newEmptyCopy() {
+        return new JitterBuffer(ring.length, lowWaterMark);
+    }
+
+    // Blocks while the buffer is full, so a fast network never outruns playback by more than the capacity
+    public synchronized void write(byte[] data, int offset, int length) throws InterruptedException {
+        while (length > 0) {
+            while (depth == ring.length) {
+                wait();
+            }
+            int writeIndex = (readIndex + depth) % ring.length;
+            int count = Math.min(length, Math.min(ring.length - depth, ring.length - writeIndex));
+            System.arraycopy(data, offset, ring, writeIndex, count);
+            depth += count;
+            offset += count;
+            length -= count;
+            notifyAll();
+        }
+    }
+
+    // Returns the number of bytes read, or -1 once the stream has ended and the buffer is drained.
+    // Waits while the buffer is filling to its low-water mark.
+    public synchronized int read(byte[] data, int offset, int length) throws InterruptedException {
+        awaitLowWaterMark();
+        return take(data, offset, length);
+    }
+
+    // Never waits: returns 0 while the buffer is filling to its low-water mark, or -1 once the stream has
+    // ended and the buffer is drained
+    public synchronized int readAvailable(byte[] data, int offset, int length) {
+        return readable() ? take(data, offset, length) : 0;
+    }
+
+    public synchronized void awaitLowWaterMark() throws InterruptedException {
+        while (!readable()) {
+            wait();
+        }
+    }
+
+    public synchronized void markEndOfStream() {
+        endOfStream = true;
+        notifyAll();
+    }
+
+    // Ends the stream with a failure, which readers see once the buffer is drained
+    public synchronized void markEndOfStream(IOException failure) {
+        this.failure = failure;
+        markEndOfStream();
+    }
+
+    // The failure the stream ended with, or null
+    public synchronized IOException failure() {
+        return failure;
+    }
+
+    public synchronized void reset() {
+        readIndex = 0;
+        depth = 0;
+        endOfStream = false;
+        failure = null;
+        filling = true;
+        stalled = false;
+        underruns = 0;
+    }
+
+    public synchronized int depth() {
+        return depth;
+    }
+
+    public synchronized long underrunCount() {
+        return underruns;
+    }
+
+    // Gate shared by both read paths: closes when the buffer runs dry mid-stream and reopens at the
+    // low-water mark or at the end of the stream
+    private boolean readable() {
+        if (depth == 0 && !endOfStream && !filling) {
+            filling = true;
+            stalled = true;
+        }
+        if (filling && depth >= lowWaterMark) {
+            filling = false;
+            if (stalled) {
+                underruns++;
+            }
+            stalled = false;
+        } else if (filling && endOfStream) {
+            filling = false;
+            stalled = false;
+        }
+        return !filling;
+    }
+
+    private int take(byte[] data, int offset, int length) {
+        if (depth == 0) {
+            return -1;
+        }
+        int count = Math.min(length, Math.min(depth, ring.length - readIndex));
+        System.arraycopy(ring, readIndex, data, offset, count);
+        readIndex = (readIndex + count) % ring.length;
+        depth -= count;
+        notifyAll();
+        return count;
+    }
+}
+
+// Adapter to convert OnlineRadio to MediaPlayer. The adapter may be shared (MediaPlayerRegistry caches it),
+// so every play gets its own jitter buffer shaped like the one it was built with; overlapping plays, or a
+// replay while an interrupted play's reader is still winding down, never write into each other's buffer.
 class OnlineRadioAdapter implements MediaPlayer {
+    private static final int CHUNK_SIZE = 4096;
+
+    // Buffer and progress of one play
+    private static final class Playback {
+        final JitterBuffer buffer;
+        volatile long bytesPlayed;
+
+        Playback(JitterBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+
     private final OnlineRadio onlineRadio;
+    private final RadioStreamSource streamSource;
+    private final JitterBuffer jitterBuffer;
+    private final int playbackBytesPerSecond;
+    private volatile Playback lastPlayback;
 
     public OnlineRadioAdapter(OnlineRadio onlineRadio) {
+        this(onlineRadio, null, null, 0);
+    }
+
+    // Prefetches the stream on a background reader and plays from the jitter buffer at the given byte rate
+    public OnlineRadioAdapter(OnlineRadio onlineRadio, RadioStreamSource streamSource,
+                              JitterBuffer jitterBuffer, int playbackBytesPerSecond) {
         this.onlineRadio = onlineRadio;
+        this.streamSource = streamSource;
+        this.jitterBuffer = jitterBuffer;
+        this.playbackBytesPerSecond = playbackBytesPerSecond;
     }
 
     @Override
     public void play(String radioStation) {
-        onlineRadio.playRadio(radioStation);
+        if (streamSource == null) {
+            onlineRadio.playRadio(radioStation);
+            return;
+        }
+
+        Playback playback = new Playback(jitterBuffer.newEmptyCopy());
+        lastPlayback = playback;
+        JitterBuffer buffer = playback.buffer;
+        Thread reader = new Thread(() -> prefetch(radioStation, buffer), "radio-prefetch");
+        reader.setDaemon(true);
+        reader.start();
+
+        try {
+            buffer.awaitLowWaterMark();
+            onlineRadio.playRadio(radioStation);
+            byte[] chunk = new byte[CHUNK_SIZE];
+            int count;
+            while ((count = buffer.read(chunk, 0, chunk.length)) >= 0) {
+                playback.bytesPlayed += count;
+                if (playbackBytesPerSecond > 0) {
+                    LockSupport.parkNanos(count * 1_000_000_000L / playbackBytesPerSecond);
+                }
+            }
+            reader.join();
+        } catch (InterruptedException e) {
+            reader.interrupt();
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        if (buffer.failure() != null) {
+            throw new UncheckedIOException("Radio stream failed: " + radioStation, buffer.failure());
+        }
+    }
+
+    private void prefetch(String radioStation, JitterBuffer buffer) {
+        prefetch(radioStation, buffer, null);
+    }
+
+    // The opened stream is handed to the source, if any, so closing the source can unblock a read
+    private void prefetch(String radioStation, JitterBuffer buffer, JitterBufferPcmSource source) {
+        IOException failure = null;
+        try (InputStream in = streamSource.open(radioStation)) {
+            if (source != null && !source.attach(in)) {
+                return;
+            }
+            byte[] chunk = new byte[CHUNK_SIZE];
+            int count;
+            while ((count = in.read(chunk)) >= 0) {
+                buffer.write(chunk, 0, count);
+            }
+        } catch (IOException e) {
+            failure = e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            buffer.markEndOfStream(failure);
+        }
+    }
+
+    // Statistics of the most recently started play
+    public long underrunCount() {
+        Playback playback = lastPlayback;
+        return playback == null ? 0 : playback.buffer.underrunCount();
+    }
+
+    public int bufferDepth() {
+        Playback playback = lastPlayback;
+        return playback == null ? 0 : playback.buffer.depth();
+    }
+
+    public long bytesPlayed() {
+        Playback playback = lastPlayback;
+        return playback == null ? 0 : playback.bytesPlayed;
+    }
+
+    // Starts prefetching and hands the buffered stream to a mixer instead of playing it here. Each source
+    // gets its own buffer shaped like the adapter's, so it never disturbs play() or other sources. Closing
+    // the source stops its reader and closes the connection.
+    public JitterBufferPcmSource openPcmSource(String radioStation) {
+        if (streamSource == null) {
+            throw new IllegalStateException("Adapter has no stream source to prefetch from");
+        }
+        JitterBuffer buffer = jitterBuffer.newEmptyCopy();
+        JitterBufferPcmSource source = new JitterBufferPcmSource(buffer, CHUNK_SIZE);
+        Thread reader = new Thread(() -> prefetch(radioStation, buffer, source), "radio-prefetch");
+        reader.setDaemon(true);
+        source.setReader(reader);
+        reader.start();
+        return source;
+    }
+}
+
+// Loopback HTTP stand-in for a radio server, with injected latency and throttled bandwidth
+class LoopbackRadioServer implements AutoCloseable {
+    private final HttpServer server;
+
+    public LoopbackRadioServer(byte[] payload, long latencyMillis, int bytesPerSecond) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", exchange -> {
+            try (OutputStream out = exchange.getResponseBody()) {
+                Thread.sleep(latencyMillis);
+                exchange.sendResponseHeaders(200, payload.length);
+                // Send in 10 slices per second to hold the configured bandwidth
+                int slice = Math.max(1, bytesPerSecond / 10);
+                for (int offset = 0; offset < payload.length; offset += slice) {
+                    out.write(payload, offset, Math.min(slice, payload.length - offset));
+                    out.flush();
+                    Thread.sleep(100);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        server.start();
+    }
+
+    public String url(String station) {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/" + station;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
+
+// Source of 16-bit PCM samples that the mixer pulls from. Closing it releases whatever feeds it, such as a
+// reader thread or a connection.
+interface PcmSource extends AutoCloseable {
+    // Fills up to length samples and returns how many were written; the rest of the chunk is silence
+    int read(short[] samples, int length);
+
+    @Override
+    void close();
+}
+
+// Sine tone source, standing in for a decoded media file
+class TonePcmSource implements PcmSource {
+    private final double phaseStep;
+    private final double amplitude;
+    private double phase;
+
+    public TonePcmSource(double frequency, int sampleRate, double amplitude) {
+        this.phaseStep = 2 * Math.PI * frequency / sampleRate;
+        this.amplitude = amplitude;
+    }
+
+    @Override
+    public int read(short[] samples, int length) {
+        for (int i = 0; i < length; i++) {
+            samples[i] = (short) (Math.sin(phase) * amplitude);
+            phase += phaseStep;
+        }
+        phase %= 2 * Math.PI;
+        return length;
+    }
+
+    @Override
+    public void close() {
+    }
+}
+
+// Little-endian 16-bit PCM read from a jitter buffer without ever blocking the mixer
+class JitterBufferPcmSource implements PcmSource {
+    private final JitterBuffer jitterBuffer;
+    private final byte[] bytes;
+    private int pendingLowByte = -1;
+    private Thread reader;
+    private InputStream stream;
+    private boolean closed;
+
+    public JitterBufferPcmSource(JitterBuffer jitterBuffer, int maxSamples) {
+        this.jitterBuffer = jitterBuffer;
+        this.bytes = new byte[maxSamples * 2];
+    }
+
+    public long underrunCount() {
+        return jitterBuffer.underrunCount();
+    }
+
+    synchronized void setReader(Thread reader) {
+        this.reader = reader;
+    }
+
+    // Called by the reader once its stream is open; false if the source was closed in the meantime
+    synchronized boolean attach(InputStream stream) {
+        this.stream = stream;
+        return !closed;
+    }
+
+    // Stops the reader, whether it is waiting for buffer space or blocked on the network, and ends the stream.
+    // A reader still connecting closes its stream as soon as the connection opens or times out.
+    @Override
+    public void close() {
+        InputStream toClose;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            toClose = stream;
+            if (reader != null) {
+                reader.interrupt();
+            }
+        }
+        if (toClose != null) {
+            try {
+                toClose.close();
+            } catch (IOException e) {
+                // The stream is being abandoned; nothing more can be done with it
+            }
+        }
+        jitterBuffer.markEndOfStream();
+    }
+
+    // Once the stream has failed and the buffer is drained, every read throws the failure
+
+    @Override
+    public int read(short[] samples, int length) {
+        int samplesRead = 0;
+        while (samplesRead < length) {
+            int wanted = Math.min(bytes.length, (length - samplesRead) * 2 - (pendingLowByte >= 0 ? 1 : 0));
+            int count = jitterBuffer.readAvailable(bytes, 0, wanted);
+            if (count < 0 && samplesRead == 0 && jitterBuffer.failure() != null) {
+                throw new UncheckedIOException("Radio stream failed", jitterBuffer.failure());
+            }
+            if (count <= 0) {
+                break;
+            }
+            int index = 0;
+            if (pendingLowByte >= 0) {
+                samples[samplesRead++] = (short) (pendingLowByte | (bytes[index++] << 8));
+                pendingLowByte = -1;
+            }
+            for (; index + 1 < count; index += 2) {
+                samples[samplesRead++] = (short) ((bytes[index] & 0xFF) | (bytes[index + 1] << 8));
+            }
+            if (index < count) {
+                pendingLowByte = bytes[index] & 0xFF;
+            }
+        }
+        return samplesRead;
+    }
+}
+
+// Mixes many PCM sources into one clipped output chunk, pulling the sources in parallel on fixed worker threads.
+// All buffers are allocated up front, so mixing a chunk allocates nothing. The mixer owns its sources: closing
+// it stops the workers and then closes every source.
+class StreamMixer implements AutoCloseable {
+    private final PcmSource[] sources;
+    private final AtomicIntegerArray gainBits;
+    private final int chunkSize;
+    private final long periodNanos;
+    private final Worker[] workers;
+    private final float[] mixBuffer;
+    private final AtomicInteger pendingWorkers = new AtomicInteger();
+    private volatile long generation;
+    private volatile boolean closed;
+    private volatile Thread mixerThread;
+    private volatile RuntimeException sourceFailure;
+    private long chunksMixed;
+    private long deadlineMisses;
+
+    public StreamMixer(PcmSource[] sources, int chunkSize, int sampleRate, int threads) {
+        this.sources = sources.clone();
+        this.gainBits = new AtomicIntegerArray(sources.length);
+        for (int i = 0; i < sources.length; i++) {
+            gainBits.set(i, Float.floatToRawIntBits(1.0f));
+        }
+        this.chunkSize = chunkSize;
+        this.periodNanos = chunkSize * 1_000_000_000L / sampleRate;
+        this.mixBuffer = new float[chunkSize];
+        this.workers = new Worker[Math.max(1, Math.min(threads, sources.length))];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(i);
+            workers[i].start();
+        }
+    }
+
+    public void setGain(int source, float gain) {
+        gainBits.set(source, Float.floatToRawIntBits(gain));
+    }
+
+    public float getGain(int source) {
+        return Float.intBitsToFloat(gainBits.get(source));
+    }
+
+    // Mixes one chunk into output; a chunk that takes longer than its playback time counts as a missed deadline.
+    // A source that throws is mixed as silence, and its exception is rethrown here once the chunk is done.
+    public void mix(short[] output) {
+        if (output.length < chunkSize) {
+            throw new IllegalArgumentException("Output holds " + output.length + " samples, chunks are " + chunkSize);
+        }
+        long start = System.nanoTime();
+        mixerThread = Thread.currentThread();
+        pendingWorkers.set(workers.length);
+        generation++;
+        for (Worker worker : workers) {
+            LockSupport.unpark(worker);
+        }
+        while (pendingWorkers.get() != 0 && !closed) {
+            LockSupport.park(this);
+        }
+
+        float[] mix = mixBuffer;
+        System.arraycopy(workers[0].partial, 0, mix, 0, chunkSize);
+        for (int w = 1; w < workers.length; w++) {
+            float[] partial = workers[w].partial;
+            for (int i = 0; i < chunkSize; i++) {
+                mix[i] += partial[i];
+            }
+        }
+        for (int i = 0; i < chunkSize; i++) {
+            output[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, mix[i]));
+        }
+
+        chunksMixed++;
+        if (System.nanoTime() - start > periodNanos) {
+            deadlineMisses++;
+        }
+        RuntimeException failure = sourceFailure;
+        if (failure != null) {
+            sourceFailure = null;
+            throw failure;
+        }
+    }
+
+    public long chunksMixed() {
+        return chunksMixed;
+    }
+
+    public long deadlineMisses() {
+        return deadlineMisses;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        boolean interrupted = false;
+        for (Worker worker : workers) {
+            LockSupport.unpark(worker);
+        }
+        for (Worker worker : workers) {
+            while (worker.isAlive()) {
+                try {
+                    worker.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        RuntimeException failure = null;
+        for (PcmSource source : sources) {
+            try {
+                source.close();
+            } catch (RuntimeException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    // Each worker owns every n-th source and sums them into its own partial buffer
+    private final class Worker extends Thread {
+        private final int firstSource;
+        private final short[] samples = new short[chunkSize];
+        private final float[] partial = new float[chunkSize];
+
+        Worker(int firstSource) {
+            super("mixer-worker-" + firstSource);
+            this.firstSource = firstSource;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            long seen = 0;
+            while (true) {
+                while (generation == seen && !closed) {
+                    LockSupport.park(this);
+                }
+                if (closed) {
+                    return;
+                }
+                seen = generation;
+
+                Arrays.fill(partial, 0f);
+                for (int s = firstSource; s < sources.length; s += workers.length) {
+                    int count;
+                    try {
+                        count = sources[s].read(samples, chunkSize);
+                    } catch (RuntimeException e) {
+                        sourceFailure = e;
+                        count = 0;
+                    }
+                    float gain = getGain(s);
+                    for (int i = 0; i < count; i++) {
+                        partial[i] += samples[i] * gain;
+                    }
+                }
+
+                if (pendingWorkers.decrementAndGet() == 0) {
+                    LockSupport.unpark(mixerThread);
+                }
+            }
+        }
+    }
+}
+
+// Registry that dispatches to a cached MediaPlayer by sniffing the file's magic bytes or the URL scheme
+class MediaPlayerRegistry implements MediaPlayer {
+    private static final int HEADER_SIZE = 16;
+    private static final int ANY = -1;
+
+    // A magic-byte pattern; ANY matches any byte at that position
+    private static final class Signature {
+        final int[] pattern;
+        final MediaPlayer player;
+
+        Signature(int[] pattern, MediaPlayer player) {
+            this.pattern = pattern;
+            this.player = player;
+        }
+
+        boolean matches(byte[] header, int length) {
+            if (length < pattern.length) {
+                return false;
+            }
+            for (int i = 1; i < pattern.length; i++) {
+                if (pattern[i] != ANY && pattern[i] != (header[i] & 0xFF)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    // Signatures are bucketed by their first byte, so a lookup only checks the few that can match
+    @SuppressWarnings("unchecked")
+    private final List<Signature>[] signaturesByFirstByte = (List<Signature>[]) new List<?>[256];
+    private final Map<String, MediaPlayer> playersByScheme = new HashMap<>();
+    private final ThreadLocal<byte[]> headerBuffer = ThreadLocal.withInitial(() -> new byte[HEADER_SIZE]);
+
+    // Registry preloaded with the MP3, WAV and OGG players
+    public static MediaPlayerRegistry withDefaultPlayers() {
+        MediaPlayerRegistry registry = new MediaPlayerRegistry();
+        MediaPlayer mp3Player = new Mp3Player();
+        registry.registerSignature("ID3", mp3Player);
+        registry.registerSignature(new int[] {0xFF, 0xFB}, mp3Player);
+        registry.registerSignature(new int[] {0xFF, 0xF3}, mp3Player);
+        registry.registerSignature(new int[] {0xFF, 0xF2}, mp3Player);
+        registry.registerSignature(new int[] {'R', 'I', 'F', 'F', ANY, ANY, ANY, ANY, 'W', 'A', 'V', 'E'}, new WavPlayer());
+        registry.registerSignature("OggS", new OggPlayer());
+        return registry;
+    }
+
+    public void registerSignature(String magic, MediaPlayer player) {
+        int[] pattern = new int[magic.length()];
+        for (int i = 0; i < pattern.length; i++) {
+            pattern[i] = magic.charAt(i);
+        }
+        registerSignature(pattern, player);
+    }
+
+    public void registerSignature(int[] pattern, MediaPlayer player) {
+        if (pattern.length == 0 || pattern.length > HEADER_SIZE || pattern[0] == ANY) {
+            throw new IllegalArgumentException("Signature must start with a fixed byte and fit in " + HEADER_SIZE + " bytes");
+        }
+        for (int value : pattern) {
+            if (value != ANY && (value < 0 || value > 0xFF)) {
+                throw new IllegalArgumentException("Signature byte out of range 0..255: " + value);
+            }
+        }
+        List<Signature> bucket = signaturesByFirstByte[pattern[0]];
+        if (bucket == null) {
+            bucket = signaturesByFirstByte[pattern[0]] = new ArrayList<>();
+        }
+        bucket.add(new Signature(pattern.clone(), player));
+    }
+
+    // Registers a player (usually an adapter such as OnlineRadioAdapter) for a URL scheme like "http".
+    // Schemes are case-insensitive, as in RFC 3986.
+    public void registerScheme(String scheme, MediaPlayer player) {
+        playersByScheme.put(scheme.toLowerCase(Locale.ROOT), player);
+    }
+
+    @Override
+    public void play(String fileName) {
+        playerFor(fileName).play(fileName);
+    }
+
+    public MediaPlayer playerFor(String fileName) {
+        int schemeEnd = fileName.indexOf("://");
+        if (schemeEnd > 0) {
+            MediaPlayer player = playersByScheme.get(fileName.substring(0, schemeEnd).toLowerCase(Locale.ROOT));
+            if (player == null) {
+                throw new IllegalArgumentException("No player registered for URL: " + fileName);
+            }
+            return player;
+        }
+
+        byte[] header = headerBuffer.get();
+        int length;
+        try (InputStream in = Files.newInputStream(Path.of(fileName))) {
+            length = in.read(header);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read media file: " + fileName, e);
+        }
+        if (length > 0) {
+            List<Signature> bucket = signaturesByFirstByte[header[0] & 0xFF];
+            if (bucket != null) {
+                for (Signature signature : bucket) {
+                    if (signature.matches(header, length)) {
+                        return signature.player;
+                    }
+                }
+            }
+        }
+        throw new IllegalArgumentException("Unsupported media format: " + fileName);
     }
 }
 
@@ -79,5 +815,55 @@ public class Main {
         MediaPlayer radioAdapter = new OnlineRadioAdapter(onlineRadio);
 
         radioAdapter.play("www.givenlepita.com");
+
+        // Letting the registry pick the player from the file contents or the URL scheme
+        MediaPlayerRegistry registry = MediaPlayerRegistry.withDefaultPlayers();
+        registry.registerScheme("http", radioAdapter);
+        try {
+            Path mp3File = Files.createTempFile("song", ".bin");
+            Path wavFile = Files.createTempFile("sound", ".bin");
+            Path oggFile = Files.createTempFile("music", ".bin");
+            Files.write(mp3File, new byte[] {'I', 'D', '3', 4, 0});
+            Files.write(wavFile, new byte[] {'R', 'I', 'F', 'F', 0, 0, 0, 0, 'W', 'A', 'V', 'E'});
+            Files.write(oggFile, new byte[] {'O', 'g', 'g', 'S', 0});
+
+            registry.play(mp3File.toString());
+            registry.play(wavFile.toString());
+            registry.play(oggFile.toString());
+            registry.play("http://www.givenlepita.com");
+
+            Files.delete(mp3File);
+            Files.delete(wavFile);
+            Files.delete(oggFile);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        // Prefetching the stream into a jitter buffer, against a slow local stand-in server
+        try (LoopbackRadioServer server = new LoopbackRadioServer(new byte[64 * 1024], 200, 32 * 1024)) {
+            OnlineRadioAdapter bufferedAdapter = new OnlineRadioAdapter(onlineRadio, new HttpRadioStreamSource(),
+                    new JitterBuffer(32 * 1024, 8 * 1024), 48 * 1024);
+            bufferedAdapter.play(server.url("jazz"));
+            System.out.println("Bytes played: " + bufferedAdapter.bytesPlayed()
+                    + ", underruns: " + bufferedAdapter.underrunCount()
+                    + ", buffer depth: " + bufferedAdapter.bufferDepth());
+
+            // Mixing 32 music tracks with the radio stream
+            PcmSource[] sources = new PcmSource[33];
+            for (int i = 0; i < 32; i++) {
+                sources[i] = new TonePcmSource(220 + 10 * i, 48_000, 1_000);
+            }
+            sources[32] = bufferedAdapter.openPcmSource(server.url("news"));
+            try (StreamMixer mixer = new StreamMixer(sources, 480, 48_000, Runtime.getRuntime().availableProcessors())) {
+                mixer.setGain(32, 0.5f);
+                short[] output = new short[480];
+                for (int chunk = 0; chunk < 1_000; chunk++) {
+                    mixer.mix(output);
+                }
+                System.out.println("Chunks mixed: " + mixer.chunksMixed() + ", deadline misses: " + mixer.deadlineMisses());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 }
@@ -1,3 +1,17 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.CRC32;
+
 // Author - Given Lepita
 
 /*
@@ -32,46 +46,172 @@ public class Main {
 
         Shape anotherSquare = new Square(12, dxRenderer);
         anotherSquare.draw();
+
+        // Batching the same kind of shapes into a software rasterizer that produces real pixels
+        BatchedShapeRenderer softwareRenderer = new BatchedShapeRenderer(new Framebuffer(64, 64), 1024);
+        softwareRenderer.setColor(0xFFFF0000);
+        new Circle(16, 16, 5, softwareRenderer).draw();
+        new Circle(40, 20, 10, softwareRenderer).draw();
+        softwareRenderer.setColor(0xFF0000FF);
+        new Square(10, 40, 7, softwareRenderer).draw();
+        new Square(40, 40, 12, softwareRenderer).draw();
+        softwareRenderer.flush();
+        System.out.println("Software framebuffer checksum: "
+                + Long.toHexString(softwareRenderer.getFramebuffer().checksum()));
+
+        // The tile-parallel renderer produces the same pixels using every core
+        TileParallelShapeRenderer tiledRenderer =
+                new TileParallelShapeRenderer(new Framebuffer(64, 64), 1024, 16, ForkJoinPool.commonPool());
+        tiledRenderer.setColor(0xFFFF0000);
+        new Circle(16, 16, 5, tiledRenderer).draw();
+        new Circle(40, 20, 10, tiledRenderer).draw();
+        tiledRenderer.setColor(0xFF0000FF);
+        new Square(10, 40, 7, tiledRenderer).draw();
+        new Square(40, 40, 12, tiledRenderer).draw();
+        tiledRenderer.flush();
+        System.out.println("Tile-parallel framebuffer checksum: "
+                + Long.toHexString(tiledRenderer.getFramebuffer().checksum()));
+
+        // A retained scene only repaints what changed between frames
+        RetainedScene scene = new RetainedScene(new Framebuffer(64, 64), 0, 16);
+        ShapeRenderer red = scene.layer(0xFFFF0000);
+        ShapeRenderer blue = scene.layer(0xFF0000FF);
+        Circle sceneCircle = new Circle(16, 16, 5, red);
+        Square sceneSquare = new Square(40, 40, 12, blue);
+        scene.add(sceneCircle);
+        scene.add(new Circle(40, 20, 10, red));
+        scene.add(new Square(10, 40, 7, blue));
+        scene.add(sceneSquare);
+        System.out.println("First frame pixels touched: " + scene.renderFrame());
+        sceneCircle.setRadius(3);
+        sceneSquare.setRenderer(red);
+        System.out.println("Second frame pixels touched: " + scene.renderFrame());
+        System.out.println("Static frame pixels touched: " + scene.renderFrame());
     }
 }
 
 // Shape interface
 interface Shape {
     void draw();
+
+    ShapeRenderer getRenderer();
+
+    // Called whenever the shape's size or renderer changes; used by retained scenes to track dirty shapes
+    default void setChangeListener(Runnable listener) {
+    }
 }
 
 // ShapeRenderer interface (The bridge interface)
 interface ShapeRenderer {
     void renderShape(int radius);
+
+    // Positioned variants; renderers that only know sizes fall back to renderShape
+    default void renderCircle(int centerX, int centerY, int radius) {
+        renderShape(radius);
+    }
+
+    default void renderSquare(int left, int top, int sideLength) {
+        renderShape(sideLength);
+    }
 }
 
 // Concrete shape implementation 1 - Circle
 class Circle implements Shape {
+    private int x;
+    private int y;
     private int radius;
     private ShapeRenderer renderer;
+    private Runnable changeListener;
 
     public Circle(int radius, ShapeRenderer renderer) {
+        this(0, 0, radius, renderer);
+    }
+
+    public Circle(int x, int y, int radius, ShapeRenderer renderer) {
+        this.x = x;
+        this.y = y;
         this.radius = radius;
         this.renderer = renderer;
     }
 
     public void draw() {
-        renderer.renderShape(radius);
+        renderer.renderCircle(x, y, radius);
+    }
+
+    @Override
+    public ShapeRenderer getRenderer() {
+        return renderer;
+    }
+
+    public void setRadius(int radius) {
+        this.radius = radius;
+        changed();
+    }
+
+    public void setRenderer(ShapeRenderer renderer) {
+        this.renderer = renderer;
+        changed();
+    }
+
+    @Override
+    public void setChangeListener(Runnable listener) {
+        this.changeListener = listener;
+    }
+
+    private void changed() {
+        if (changeListener != null) {
+            changeListener.run();
+        }
     }
 }
 
 // Concrete shape implementation 2 - Square
 class Square implements Shape {
+    private int x;
+    private int y;
     private int sideLength;
     private ShapeRenderer renderer;
+    private Runnable changeListener;
 
     public Square(int sideLength, ShapeRenderer renderer) {
+        this(0, 0, sideLength, renderer);
+    }
+
+    public Square(int x, int y, int sideLength, ShapeRenderer renderer) {
+        this.x = x;
+        this.y = y;
         this.sideLength = sideLength;
         this.renderer = renderer;
     }
 
     public void draw() {
-        renderer.renderShape(sideLength);
+        renderer.renderSquare(x, y, sideLength);
+    }
+
+    @Override
+    public ShapeRenderer getRenderer() {
+        return renderer;
+    }
+
+    public void setSideLength(int sideLength) {
+        this.sideLength = sideLength;
+        changed();
+    }
+
+    public void setRenderer(ShapeRenderer renderer) {
+        this.renderer = renderer;
+        changed();
+    }
+
+    @Override
+    public void setChangeListener(Runnable listener) {
+        this.changeListener = listener;
+    }
+
+    private void changed() {
+        if (changeListener != null) {
+            changeListener.run();
+        }
     }
 }
 
@@ -88,3 +228,639 @@ class DirectXShapeRenderer implements ShapeRenderer {
         System.out.println("Drawing shape using DirectX with radius/side length: " + radiusOrSideLength);
     }
 }
+
+// Off-heap 32-bit ARGB framebuffer
+class Framebuffer {
+    private final int width;
+    private final int height;
+    private final ByteBuffer bytes;
+    private final IntBuffer pixels;
+
+    public Framebuffer(int width, int height) {
+        this.width = width;
+        this.height = height;
+        // A fixed byte order keeps checksums the same on every platform
+        this.bytes = ByteBuffer.allocateDirect(width * height * 4).order(ByteOrder.BIG_ENDIAN);
+        this.pixels = bytes.asIntBuffer();
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getPixel(int x, int y) {
+        return pixels.get(y * width + x);
+    }
+
+    // Fills the pixels [x0, x1) of row y
+    public void fillSpan(int y, int x0, int x1, int color) {
+        int rowStart = y * width;
+        for (int x = x0; x < x1; x++) {
+            pixels.put(rowStart + x, color);
+        }
+    }
+
+    public void clear(int color) {
+        for (int y = 0; y < height; y++) {
+            fillSpan(y, 0, width, color);
+        }
+    }
+
+    public long checksum() {
+        CRC32 crc = new CRC32();
+        crc.update(bytes.duplicate().clear());
+        return crc.getValue();
+    }
+}
+
+// Scanline rasterizer for recorded draw commands, clipped to a rectangle of the framebuffer
+final class Rasterizer {
+    static final int OP_CIRCLE = 0;
+    static final int OP_SQUARE = 1;
+    // Each command is {op, x, y, size, color}
+    static final int STRIDE = 5;
+
+    private Rasterizer() {
+    }
+
+    // Draws commands [from, to) in order, touching only pixels inside [clipX0, clipX1) x [clipY0, clipY1)
+    static void rasterize(int[] commands, int from, int to, Framebuffer framebuffer,
+                          int clipX0, int clipY0, int clipX1, int clipY1) {
+        for (int c = from; c < to; c++) {
+            int base = c * STRIDE;
+            int x = commands[base + 1];
+            int y = commands[base + 2];
+            int size = commands[base + 3];
+            int color = commands[base + 4];
+            if (commands[base] == OP_CIRCLE) {
+                rasterizeCircle(framebuffer, x, y, size, color, clipX0, clipY0, clipX1, clipY1);
+            } else {
+                rasterizeSquare(framebuffer, x, y, size, color, clipX0, clipY0, clipX1, clipY1);
+            }
+        }
+    }
+
+    private static void rasterizeCircle(Framebuffer framebuffer, int centerX, int centerY, int radius, int color,
+                                        int clipX0, int clipY0, int clipX1, int clipY1) {
+        int top = Math.max(centerY - radius, clipY0);
+        int bottom = Math.min(centerY + radius + 1, clipY1);
+        long radiusSquared = (long) radius * radius;
+        for (int y = top; y < bottom; y++) {
+            long dy = y - centerY;
+            int halfWidth = (int) Math.sqrt(radiusSquared - dy * dy);
+            int x0 = Math.max(centerX - halfWidth, clipX0);
+            int x1 = Math.min(centerX + halfWidth + 1, clipX1);
+            if (x0 < x1) {
+                framebuffer.fillSpan(y, x0, x1, color);
+            }
+        }
+    }
+
+    private static void rasterizeSquare(Framebuffer framebuffer, int left, int top, int sideLength, int color,
+                                        int clipX0, int clipY0, int clipX1, int clipY1) {
+        int x0 = Math.max(left, clipX0);
+        int x1 = Math.min(left + sideLength, clipX1);
+        int y1 = Math.min(top + sideLength, clipY1);
+        if (x0 >= x1) {
+            return;
+        }
+        for (int y = Math.max(top, clipY0); y < y1; y++) {
+            framebuffer.fillSpan(y, x0, x1, color);
+        }
+    }
+}
+
+// Concrete rendering platform implementation 3 - a CPU software rasterizer.
+// Draw calls only append to a primitive command buffer; pixels are produced in batches on flush.
+class BatchedShapeRenderer implements ShapeRenderer {
+    protected final Framebuffer framebuffer;
+    private final int[] commands;
+    private int commandCount;
+    private final int batchSize;
+    private int color = 0xFFFFFFFF;
+
+    public BatchedShapeRenderer(Framebuffer framebuffer, int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+        }
+        this.framebuffer = framebuffer;
+        this.batchSize = batchSize;
+        this.commands = new int[batchSize * Rasterizer.STRIDE];
+    }
+
+    public void setColor(int argb) {
+        this.color = argb;
+    }
+
+    public Framebuffer getFramebuffer() {
+        return framebuffer;
+    }
+
+    // A bare size has no shape or position, so it is drawn as a square at the origin
+    public void renderShape(int radiusOrSideLength) {
+        renderSquare(0, 0, radiusOrSideLength);
+    }
+
+    @Override
+    public void renderCircle(int centerX, int centerY, int radius) {
+        record(Rasterizer.OP_CIRCLE, centerX, centerY, radius);
+    }
+
+    @Override
+    public void renderSquare(int left, int top, int sideLength) {
+        record(Rasterizer.OP_SQUARE, left, top, sideLength);
+    }
+
+    private void record(int op, int x, int y, int size) {
+        if (commandCount == batchSize) {
+            flush();
+        }
+        int base = commandCount * Rasterizer.STRIDE;
+        commands[base] = op;
+        commands[base + 1] = x;
+        commands[base + 2] = y;
+        commands[base + 3] = size;
+        commands[base + 4] = color;
+        commandCount++;
+    }
+
+    // Rasterizes every recorded command into the framebuffer and empties the command buffer
+    public void flush() {
+        rasterizeBatch(commands, commandCount);
+        commandCount = 0;
+    }
+
+    protected void rasterizeBatch(int[] commands, int count) {
+        Rasterizer.rasterize(commands, 0, count, framebuffer, 0, 0, framebuffer.getWidth(), framebuffer.getHeight());
+    }
+
+    // Bounding box of a recorded command as {x0, y0, x1, y1}, exclusive on the right and bottom
+    static void bounds(int[] commands, int command, int[] box) {
+        int base = command * Rasterizer.STRIDE;
+        int x = commands[base + 1];
+        int y = commands[base + 2];
+        int size = commands[base + 3];
+        if (commands[base] == Rasterizer.OP_CIRCLE) {
+            box[0] = x - size;
+            box[1] = y - size;
+            box[2] = x + size + 1;
+            box[3] = y + size + 1;
+        } else {
+            box[0] = x;
+            box[1] = y;
+            box[2] = x + size;
+            box[3] = y + size;
+        }
+    }
+}
+
+// Concrete rendering platform implementation 4 - bins each batch into screen tiles and rasterizes the tiles
+// in parallel. Every pixel belongs to exactly one tile and each tile replays its commands in recording order,
+// so the output is byte-identical to BatchedShapeRenderer.
+class TileParallelShapeRenderer extends BatchedShapeRenderer {
+    private final ForkJoinPool pool;
+    private final int tileSize;
+    private final int tilesAcross;
+    private final int tilesDown;
+
+    public TileParallelShapeRenderer(Framebuffer framebuffer, int batchSize, int tileSize, ForkJoinPool pool) {
+        super(framebuffer, batchSize);
+        this.pool = pool;
+        this.tileSize = tileSize;
+        this.tilesAcross = (framebuffer.getWidth() + tileSize - 1) / tileSize;
+        this.tilesDown = (framebuffer.getHeight() + tileSize - 1) / tileSize;
+    }
+
+    @Override
+    protected void rasterizeBatch(int[] commands, int count) {
+        int tileCount = tilesAcross * tilesDown;
+        int[] tileStart = new int[tileCount + 1];
+        int[] box = new int[4];
+
+        // First pass counts the commands per tile, second pass fills the bins in recording order
+        for (int c = 0; c < count; c++) {
+            bounds(commands, c, box);
+            if (tileRange(box)) {
+                for (int ty = box[1]; ty <= box[3]; ty++) {
+                    for (int tx = box[0]; tx <= box[2]; tx++) {
+                        tileStart[ty * tilesAcross + tx + 1]++;
+                    }
+                }
+            }
+        }
+        for (int t = 0; t < tileCount; t++) {
+            tileStart[t + 1] += tileStart[t];
+        }
+        int[] binned = new int[tileStart[tileCount]];
+        int[] fill = tileStart.clone();
+        for (int c = 0; c < count; c++) {
+            bounds(commands, c, box);
+            if (tileRange(box)) {
+                for (int ty = box[1]; ty <= box[3]; ty++) {
+                    for (int tx = box[0]; tx <= box[2]; tx++) {
+                        binned[fill[ty * tilesAcross + tx]++] = c;
+                    }
+                }
+            }
+        }
+
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(tileCount);
+        for (int t = 0; t < tileCount; t++) {
+            if (tileStart[t] != tileStart[t + 1]) {
+                tasks.add(new TileTask(commands, binned, tileStart[t], tileStart[t + 1], t));
+            }
+        }
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+    }
+
+    // Converts a pixel bounding box into an inclusive tile range in place; false if it is off screen
+    private boolean tileRange(int[] box) {
+        int x0 = Math.max(box[0], 0);
+        int y0 = Math.max(box[1], 0);
+        int x1 = Math.min(box[2], framebuffer.getWidth());
+        int y1 = Math.min(box[3], framebuffer.getHeight());
+        if (x0 >= x1 || y0 >= y1) {
+            return false;
+        }
+        box[0] = x0 / tileSize;
+        box[1] = y0 / tileSize;
+        box[2] = (x1 - 1) / tileSize;
+        box[3] = (y1 - 1) / tileSize;
+        return true;
+    }
+
+    private final class TileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] commands;
+        private final int[] binned;
+        private final int from;
+        private final int to;
+        private final int tile;
+
+        TileTask(int[] commands, int[] binned, int from, int to, int tile) {
+            this.commands = commands;
+            this.binned = binned;
+            this.from = from;
+            this.to = to;
+            this.tile = tile;
+        }
+
+        @Override
+        protected void compute() {
+            int clipX0 = (tile % tilesAcross) * tileSize;
+            int clipY0 = (tile / tilesAcross) * tileSize;
+            int clipX1 = Math.min(clipX0 + tileSize, framebuffer.getWidth());
+            int clipY1 = Math.min(clipY0 + tileSize, framebuffer.getHeight());
+            for (int i = from; i < to; i++) {
+                int command = binned[i];
+                Rasterizer.rasterize(commands, command, command + 1, framebuffer, clipX0, clipY0, clipX1, clipY1);
+            }
+        }
+    }
+}
+
+// Retained scene on top of the software rasterizer. Shapes stay in the scene between frames and only the regions
+// touched by changed shapes are cleared and redrawn. Shapes are drawn through the scene's layers (one per color);
+// moving a shape to another layer counts as a change, and a shape whose renderer is outside the scene is not drawn
+// by it at all. Ids of removed shapes are reused, so shapes are stacked by a separate insertion sequence.
+class RetainedScene {
+    private static final int NO_COMMAND = -1;
+
+    private final Framebuffer framebuffer;
+    private final int background;
+    private final int cellSize;
+    private final int cellsAcross;
+    private final int cellsDown;
+    private final int[][] cellShapes;
+    private final int[] cellCounts;
+
+    private final List<Shape> shapes = new ArrayList<>();
+    private final Map<Shape, Integer> ids = new IdentityHashMap<>();
+    private int[] freeIds = new int[16];
+    private int freeCount;
+    private int[] sequence = new int[64];
+    private int nextSequence;
+    private int[] commands = new int[64 * Rasterizer.STRIDE];
+    private int[] drawnBounds = new int[64 * 4];
+    private boolean[] dirty = new boolean[64];
+    private int[] visitStamp = new int[64];
+    private int[] dirtyIds = new int[64];
+    private int dirtyCount;
+    private int stamp;
+    private int capturing = -1;
+    private long lastFramePixels;
+
+    public RetainedScene(Framebuffer framebuffer, int background, int cellSize) {
+        this.framebuffer = framebuffer;
+        this.background = background;
+        this.cellSize = cellSize;
+        this.cellsAcross = (framebuffer.getWidth() + cellSize - 1) / cellSize;
+        this.cellsDown = (framebuffer.getHeight() + cellSize - 1) / cellSize;
+        this.cellShapes = new int[cellsAcross * cellsDown][];
+        this.cellCounts = new int[cellsAcross * cellsDown];
+        framebuffer.clear(background);
+    }
+
+    // Renderer that draws into this scene with a fixed color
+    public ShapeRenderer layer(int color) {
+        return new Layer(color);
+    }
+
+    public Framebuffer getFramebuffer() {
+        return framebuffer;
+    }
+
+    public void add(Shape shape) {
+        if (ids.containsKey(shape)) {
+            return;
+        }
+        int id;
+        if (freeCount > 0) {
+            id = freeIds[--freeCount];
+            shapes.set(id, shape);
+        } else {
+            id = shapes.size();
+            shapes.add(shape);
+            ensureCapacity(id + 1);
+            commands[id * Rasterizer.STRIDE] = NO_COMMAND;
+        }
+        ids.put(shape, id);
+        sequence[id] = nextSequence++;
+        shape.setChangeListener(() -> markDirty(id));
+        markDirty(id);
+    }
+
+    // The slot is freed once the next frame has erased the shape
+    public void remove(Shape shape) {
+        Integer id = ids.remove(shape);
+        if (id == null) {
+            return;
+        }
+        shape.setChangeListener(null);
+        shapes.set(id, null);
+        markDirty(id);
+    }
+
+    // Redraws only the damaged regions and returns the number of pixels written this frame
+    public long renderFrame() {
+        long pixels = 0;
+        int[] oldBox = new int[4];
+        int[] newBox = new int[4];
+        for (int d = 0; d < dirtyCount; d++) {
+            int id = dirtyIds[d];
+            dirty[id] = false;
+
+            // Damage where the shape used to be...
+            boolean wasDrawn = commands[id * Rasterizer.STRIDE] != NO_COMMAND;
+            if (wasDrawn) {
+                System.arraycopy(drawnBounds, id * 4, oldBox, 0, 4);
+                updateGrid(id, oldBox, false);
+            }
+
+            // ...and where it is now
+            commands[id * Rasterizer.STRIDE] = NO_COMMAND;
+            Shape shape = shapes.get(id);
+            if (shape != null && isLayer(shape.getRenderer())) {
+                capturing = id;
+                shape.draw();
+                capturing = -1;
+            }
+            boolean isDrawn = commands[id * Rasterizer.STRIDE] != NO_COMMAND;
+            if (isDrawn) {
+                BatchedShapeRenderer.bounds(commands, id, newBox);
+                System.arraycopy(newBox, 0, drawnBounds, id * 4, 4);
+                updateGrid(id, newBox, true);
+            }
+
+            // Overlapping old and new areas are repainted once, as their bounding box
+            if (wasDrawn && isDrawn && overlaps(oldBox, newBox)) {
+                oldBox[0] = Math.min(oldBox[0], newBox[0]);
+                oldBox[1] = Math.min(oldBox[1], newBox[1]);
+                oldBox[2] = Math.max(oldBox[2], newBox[2]);
+                oldBox[3] = Math.max(oldBox[3], newBox[3]);
+                pixels += repaint(oldBox);
+            } else {
+                if (wasDrawn) {
+                    pixels += repaint(oldBox);
+                }
+                if (isDrawn) {
+                    pixels += repaint(newBox);
+                }
+            }
+
+            if (shape == null) {
+                if (freeCount == freeIds.length) {
+                    freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+                }
+                freeIds[freeCount++] = id;
+            }
+        }
+        dirtyCount = 0;
+        lastFramePixels = pixels;
+        return pixels;
+    }
+
+    public long lastFramePixels() {
+        return lastFramePixels;
+    }
+
+    private boolean isLayer(ShapeRenderer renderer) {
+        return renderer instanceof Layer && ((Layer) renderer).scene() == this;
+    }
+
+    private static boolean overlaps(int[] a, int[] b) {
+        return a[0] < b[2] && b[0] < a[2] && a[1] < b[3] && b[1] < a[3];
+    }
+
+    private void markDirty(int id) {
+        if (!dirty[id]) {
+            dirty[id] = true;
+            if (dirtyCount == dirtyIds.length) {
+                dirtyIds = Arrays.copyOf(dirtyIds, dirtyCount * 2);
+            }
+            dirtyIds[dirtyCount++] = id;
+        }
+    }
+
+    // Clears a rectangle and redraws, in insertion order, every shape overlapping it
+    private long repaint(int[] bounds) {
+        int x0 = Math.max(bounds[0], 0);
+        int y0 = Math.max(bounds[1], 0);
+        int x1 = Math.min(bounds[2], framebuffer.getWidth());
+        int y1 = Math.min(bounds[3], framebuffer.getHeight());
+        if (x0 >= x1 || y0 >= y1) {
+            return 0;
+        }
+        for (int y = y0; y < y1; y++) {
+            framebuffer.fillSpan(y, x0, x1, background);
+        }
+
+        stamp++;
+        int[] overlapping = new int[16];
+        int count = 0;
+        for (int cy = y0 / cellSize; cy <= (y1 - 1) / cellSize; cy++) {
+            for (int cx = x0 / cellSize; cx <= (x1 - 1) / cellSize; cx++) {
+                int cell = cy * cellsAcross + cx;
+                for (int i = 0; i < cellCounts[cell]; i++) {
+                    int id = cellShapes[cell][i];
+                    if (visitStamp[id] != stamp) {
+                        visitStamp[id] = stamp;
+                        if (count == overlapping.length) {
+                            overlapping = Arrays.copyOf(overlapping, count * 2);
+                        }
+                        overlapping[count++] = id;
+                    }
+                }
+            }
+        }
+        // Stacking order follows the insertion sequence, packed above the id so one sort orders both
+        long[] order = new long[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = (long) sequence[overlapping[i]] << 32 | overlapping[i];
+        }
+        Arrays.sort(order);
+        for (long key : order) {
+            int id = (int) key;
+            Rasterizer.rasterize(commands, id, id + 1, framebuffer, x0, y0, x1, y1);
+        }
+        return (long) (x1 - x0) * (y1 - y0);
+    }
+
+    private void updateGrid(int id, int[] bounds, boolean insert) {
+        int x0 = Math.max(bounds[0], 0);
+        int y0 = Math.max(bounds[1], 0);
+        int x1 = Math.min(bounds[2], framebuffer.getWidth());
+        int y1 = Math.min(bounds[3], framebuffer.getHeight());
+        if (x0 >= x1 || y0 >= y1) {
+            return;
+        }
+        for (int cy = y0 / cellSize; cy <= (y1 - 1) / cellSize; cy++) {
+            for (int cx = x0 / cellSize; cx <= (x1 - 1) / cellSize; cx++) {
+                int cell = cy * cellsAcross + cx;
+                if (insert) {
+                    if (cellShapes[cell] == null) {
+                        cellShapes[cell] = new int[4];
+                    } else if (cellCounts[cell] == cellShapes[cell].length) {
+                        cellShapes[cell] = Arrays.copyOf(cellShapes[cell], cellCounts[cell] * 2);
+                    }
+                    cellShapes[cell][cellCounts[cell]++] = id;
+                } else {
+                    int[] ids = cellShapes[cell];
+                    for (int i = 0; i < cellCounts[cell]; i++) {
+                        if (ids[i] == id) {
+                            ids[i] = ids[--cellCounts[cell]];
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void ensureCapacity(int shapeCount) {
+        if (shapeCount > dirty.length) {
+            int capacity = Math.max(shapeCount, dirty.length * 2);
+            commands = Arrays.copyOf(commands, capacity * Rasterizer.STRIDE);
+            drawnBounds = Arrays.copyOf(drawnBounds, capacity * 4);
+            dirty = Arrays.copyOf(dirty, capacity);
+            visitStamp = Arrays.copyOf(visitStamp, capacity);
+            sequence = Arrays.copyOf(sequence, capacity);
+        }
+    }
+
+    private void capture(int op, int x, int y, int size, int color) {
+        if (capturing < 0) {
+            return;
+        }
+        int base = capturing * Rasterizer.STRIDE;
+        commands[base] = op;
+        commands[base + 1] = x;
+        commands[base + 2] = y;
+        commands[base + 3] = size;
+        commands[base + 4] = color;
+    }
+
+    private final class Layer implements ShapeRenderer {
+        private final int color;
+
+        Layer(int color) {
+            this.color = color;
+        }
+
+        RetainedScene scene() {
+            return RetainedScene.this;
+        }
+
+        public void renderShape(int radiusOrSideLength) {
+            renderSquare(0, 0, radiusOrSideLength);
+        }
+
+        @Override
+        public void renderCircle(int centerX, int centerY, int radius) {
+            capture(Rasterizer.OP_CIRCLE, centerX, centerY, radius, color);
+        }
+
+        @Override
+        public void renderSquare(int left, int top, int sideLength) {
+            capture(Rasterizer.OP_SQUARE, left, top, sideLength, color);
+        }
+    }
+}
+
+// Scaling report for the tile-parallel renderer against the single-threaded reference.
+// Run with: java ShapeRenderingBenchmark [shapes] [maxThreads]
+class ShapeRenderingBenchmark {
+    public static void main(String[] args) {
+        int shapes = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        int width = 2048;
+        int height = 2048;
+
+        BatchedShapeRenderer reference = new BatchedShapeRenderer(new Framebuffer(width, height), shapes);
+        long referenceNanos = render(reference, shapes, width, height);
+        long referenceChecksum = reference.getFramebuffer().checksum();
+        System.out.printf("reference: %d shapes in %.1f ms%n", shapes, referenceNanos / 1e6);
+
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            TileParallelShapeRenderer renderer =
+                    new TileParallelShapeRenderer(new Framebuffer(width, height), shapes, 64, pool);
+            long nanos = render(renderer, shapes, width, height);
+            boolean identical = renderer.getFramebuffer().checksum() == referenceChecksum;
+            System.out.printf("%d threads: %.1f ms, speedup %.2fx, identical=%b%n",
+                    threads, nanos / 1e6, (double) referenceNanos / nanos, identical);
+            pool.shutdown();
+        }
+    }
+
+    // Best of five runs over the same seeded scene of circles and squares
+    private static long render(BatchedShapeRenderer renderer, int shapes, int width, int height) {
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < 5; run++) {
+            renderer.getFramebuffer().clear(0);
+            Random random = new Random(42);
+            long start = System.nanoTime();
+            for (int i = 0; i < shapes; i++) {
+                renderer.setColor(random.nextInt() | 0xFF000000);
+                int x = random.nextInt(width);
+                int y = random.nextInt(height);
+                int size = 1 + random.nextInt(32);
+                Shape shape = (i & 1) == 0 ? new Circle(x, y, size, renderer) : new Square(x, y, size, renderer);
+                shape.draw();
+            }
+            renderer.flush();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+}
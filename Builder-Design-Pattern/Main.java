@@ -1,3 +1,28 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
 // Author - Given Lepita
 /*
  * Imagine you are tasked with developing a pizza ordering system for a restaurant.
@@ -44,48 +69,212 @@ public class Main {
 
         System.out.println("\nMeat Lovers Pizza:");
         System.out.println(meatLoversPizza);
+
+        // Round-trip a pizza through the compact binary codec
+        ByteBuffer encoded = ByteBuffer.allocate(PizzaCodec.MAX_PIZZA_BYTES);
+        PizzaCodec.encode(veggiePizza, encoded);
+        encoded.flip();
+        try {
+            System.out.println("\nEncoded Veggie Pizza in " + encoded.remaining() + " bytes, decoded to the same instance: "
+                    + (PizzaCodec.decode(encoded) == veggiePizza));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        // Build several pizzas at once in the pipelined kitchen, one builder per order
+        try (PizzaKitchen kitchen = new PizzaKitchen(16, 1, 1, 1, 1)) {
+            CountDownLatch ready = new CountDownLatch(4);
+            for (int i = 0; i < 4; i++) {
+                PizzaBuilder builder = (i & 1) == 0 ? new VeggiePizzaBuilder() : new MeatLoversPizzaBuilder();
+                kitchen.submit(builder, pizza -> {
+                    System.out.println("\nKitchen finished: " + pizza);
+                    ready.countDown();
+                });
+            }
+            ready.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 }
 
-// Pizza.java (Product)
-class Pizza {
-    private String crust;
-    private String sauce;
-    private String cheese;
-    private String toppings;
+// IngredientCatalog.java - interns ingredient names to small ids, so pizzas store ids instead of strings
+final class IngredientCatalog {
+    // Id of a missing ingredient, such as the sauce of a builder that skipped buildSauce()
+    static final int NONE = -1;
 
-    public void setCrust(String crust) {
-        this.crust = crust;
+    // Crusts, sauces and cheeses
+    static final IngredientCatalog BASES = new IngredientCatalog(Character.MAX_VALUE);
+    // Toppings are limited to 64 so a pizza's toppings fit in one long bitset
+    static final IngredientCatalog TOPPINGS = new IngredientCatalog(Long.SIZE);
+
+    private final int capacity;
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] names = new String[0];
+
+    private IngredientCatalog(int capacity) {
+        this.capacity = capacity;
     }
 
-    public void setSauce(String sauce) {
-        this.sauce = sauce;
+    public int intern(String name) {
+        Integer id = ids.get(name);
+        return id != null ? id : register(name);
     }
 
-    public void setCheese(String cheese) {
-        this.cheese = cheese;
+    // Null for NONE
+    public String name(int id) {
+        return id == NONE ? null : names[id];
+    }
+
+    // Ids run from 0 to size() - 1
+    public int size() {
+        return names.length;
+    }
+
+    private synchronized int register(String name) {
+        Integer id = ids.get(name);
+        if (id != null) {
+            return id;
+        }
+        if (names.length == capacity) {
+            throw new IllegalStateException("Ingredient catalog is full: " + name);
+        }
+        String[] grown = Arrays.copyOf(names, names.length + 1);
+        grown[names.length] = name;
+        names = grown;
+        ids.put(name, names.length - 1);
+        return names.length - 1;
     }
+}
+
+// Pizza.java (Product) - immutable, with one canonical instance per distinct recipe
+final class Pizza {
+    private static final Map<Pizza, Pizza> CANONICAL = new ConcurrentHashMap<>();
 
-    public void setToppings(String toppings) {
+    private final int crust;
+    private final int sauce;
+    private final int cheese;
+    private final long toppings;
+    private String description;
+
+    private Pizza(int crust, int sauce, int cheese, long toppings) {
+        this.crust = crust;
+        this.sauce = sauce;
+        this.cheese = cheese;
         this.toppings = toppings;
     }
 
+    // Returns the shared instance for these ingredient ids
+    public static Pizza of(int crust, int sauce, int cheese, long toppings) {
+        Pizza pizza = new Pizza(crust, sauce, cheese, toppings);
+        Pizza canonical = CANONICAL.putIfAbsent(pizza, pizza);
+        return canonical != null ? canonical : pizza;
+    }
+
+    public String getCrust() {
+        return IngredientCatalog.BASES.name(crust);
+    }
+
+    public String getSauce() {
+        return IngredientCatalog.BASES.name(sauce);
+    }
+
+    public String getCheese() {
+        return IngredientCatalog.BASES.name(cheese);
+    }
+
+    public boolean hasTopping(int topping) {
+        return (toppings & PizzaBuilder.toppingBit(topping)) != 0;
+    }
+
+    int crustId() {
+        return crust;
+    }
+
+    int sauceId() {
+        return sauce;
+    }
+
+    int cheeseId() {
+        return cheese;
+    }
+
+    long toppingBits() {
+        return toppings;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof Pizza)) {
+            return false;
+        }
+        Pizza pizza = (Pizza) other;
+        return crust == pizza.crust && sauce == pizza.sauce && cheese == pizza.cheese && toppings == pizza.toppings;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * (31 * crust + sauce) + cheese) + Long.hashCode(toppings);
+    }
+
+    // Built once per canonical instance; toppings are listed in catalog order
     @Override
     public String toString() {
-        return "Crust: " + crust + ", Sauce: " + sauce + ", Cheese: " + cheese + ", Toppings: " + toppings;
+        String text = description;
+        if (text == null) {
+            StringBuilder toppingNames = new StringBuilder();
+            for (long bits = toppings; bits != 0; bits &= bits - 1) {
+                if (toppingNames.length() > 0) {
+                    toppingNames.append(", ");
+                }
+                toppingNames.append(IngredientCatalog.TOPPINGS.name(Long.numberOfTrailingZeros(bits)));
+            }
+            text = "Crust: " + getCrust() + ", Sauce: " + getSauce() + ", Cheese: " + getCheese()
+                    + ", Toppings: " + toppingNames;
+            description = text;
+        }
+        return text;
     }
 }
 
 // PizzaBuilder.java (Abstract Builder)
+// Builders hold plain ids and are reset rather than reallocated, so one builder per thread can build any number of
+// pizzas. A builder is not thread-safe; give each thread its own (for example through a ThreadLocal).
 abstract class PizzaBuilder {
-    protected Pizza pizza;
+    protected int crust = IngredientCatalog.NONE;
+    protected int sauce = IngredientCatalog.NONE;
+    protected int cheese = IngredientCatalog.NONE;
+    protected long toppings;
+    private Pizza lastPizza;
 
+    // Repeated builds of the same recipe return the last pizza without touching the shared canonical map
     public Pizza getPizza() {
+        Pizza pizza = lastPizza;
+        if (pizza == null || pizza.crustId() != crust || pizza.sauceId() != sauce
+                || pizza.cheeseId() != cheese || pizza.toppingBits() != toppings) {
+            pizza = Pizza.of(crust, sauce, cheese, toppings);
+            lastPizza = pizza;
+        }
         return pizza;
     }
 
+    // Steps that are skipped leave their ingredient as NONE
     public void createNewPizza() {
-        pizza = new Pizza();
+        crust = IngredientCatalog.NONE;
+        sauce = IngredientCatalog.NONE;
+        cheese = IngredientCatalog.NONE;
+        toppings = 0;
+    }
+
+    protected void addTopping(int topping) {
+        toppings |= toppingBit(topping);
+    }
+
+    static long toppingBit(int topping) {
+        if (topping < 0 || topping >= Long.SIZE) {
+            throw new IllegalArgumentException("Topping id out of range 0.." + (Long.SIZE - 1) + ": " + topping);
+        }
+        return 1L << topping;
     }
 
     public abstract void buildCrust();
@@ -99,39 +288,61 @@ abstract class PizzaBuilder {
 
 // VeggiePizzaBuilder.java (Concrete Builder)
 class VeggiePizzaBuilder extends PizzaBuilder {
+    private static final int THIN_CRUST = IngredientCatalog.BASES.intern("Thin Crust");
+    private static final int TOMATO_SAUCE = IngredientCatalog.BASES.intern("Tomato Sauce");
+    private static final int MOZZARELLA = IngredientCatalog.BASES.intern("Mozzarella Cheese");
+    private static final int MUSHROOMS = IngredientCatalog.TOPPINGS.intern("Mushrooms");
+    private static final int BELL_PEPPERS = IngredientCatalog.TOPPINGS.intern("Bell Peppers");
+    private static final int OLIVES = IngredientCatalog.TOPPINGS.intern("Olives");
+    private static final int ONIONS = IngredientCatalog.TOPPINGS.intern("Onions");
+
     public void buildCrust() {
-        pizza.setCrust("Thin Crust");
+        crust = THIN_CRUST;
     }
 
     public void buildSauce() {
-        pizza.setSauce("Tomato Sauce");
+        sauce = TOMATO_SAUCE;
     }
 
     public void buildCheese() {
-        pizza.setCheese("Mozzarella Cheese");
+        cheese = MOZZARELLA;
     }
 
     public void buildToppings() {
-        pizza.setToppings("Mushrooms, Bell Peppers, Olives, Onions");
+        addTopping(MUSHROOMS);
+        addTopping(BELL_PEPPERS);
+        addTopping(OLIVES);
+        addTopping(ONIONS);
     }
 }
 
 // MeatLoversPizzaBuilder.java (Concrete Builder)
 class MeatLoversPizzaBuilder extends PizzaBuilder {
+    private static final int THICK_CRUST = IngredientCatalog.BASES.intern("Thick Crust");
+    private static final int BARBECUE_SAUCE = IngredientCatalog.BASES.intern("Barbecue Sauce");
+    private static final int CHEDDAR = IngredientCatalog.BASES.intern("Cheddar Cheese");
+    private static final int PEPPERONI = IngredientCatalog.TOPPINGS.intern("Pepperoni");
+    private static final int SAUSAGE = IngredientCatalog.TOPPINGS.intern("Sausage");
+    private static final int BACON = IngredientCatalog.TOPPINGS.intern("Bacon");
+    private static final int HAM = IngredientCatalog.TOPPINGS.intern("Ham");
+
     public void buildCrust() {
-        pizza.setCrust("Thick Crust");
+        crust = THICK_CRUST;
     }
 
     public void buildSauce() {
-        pizza.setSauce("Barbecue Sauce");
+        sauce = BARBECUE_SAUCE;
     }
 
     public void buildCheese() {
-        pizza.setCheese("Cheddar Cheese");
+        cheese = CHEDDAR;
     }
 
     public void buildToppings() {
-        pizza.setToppings("Pepperoni, Sausage, Bacon, Ham");
+        addTopping(PEPPERONI);
+        addTopping(SAUSAGE);
+        addTopping(BACON);
+        addTopping(HAM);
     }
 }
 
@@ -151,11 +362,722 @@ class PizzaDirector {
         return pizzaBuilder.getPizza();
     }
 
+    // The construction steps in order; constructPizza() runs them all and PizzaKitchen runs one per stage
+    static final List<String> STEP_NAMES = List.of("crust", "sauce", "cheese", "toppings");
+    static final List<Consumer<PizzaBuilder>> STEPS = List.of(
+            builder -> {
+                builder.createNewPizza();
+                builder.buildCrust();
+            },
+            PizzaBuilder::buildSauce,
+            PizzaBuilder::buildCheese,
+            PizzaBuilder::buildToppings);
+
     public void constructPizza() {
-        pizzaBuilder.createNewPizza();
-        pizzaBuilder.buildCrust();
-        pizzaBuilder.buildSauce();
-        pizzaBuilder.buildCheese();
-        pizzaBuilder.buildToppings();
+        for (Consumer<PizzaBuilder> step : STEPS) {
+            step.accept(pizzaBuilder);
+        }
+    }
+}
+
+// PizzaKitchen.java - runs the director's build steps as a pipeline of stages joined by bounded queues.
+// Every order carries its own builder, so many pizzas are in flight at once; a full queue blocks the stage
+// (or the submitter) in front of it, which is the kitchen's backpressure. An order whose step or callback throws
+// leaves the pipeline at that stage and its exception goes to the order's failure callback.
+class PizzaKitchen implements AutoCloseable {
+    static final String[] STAGE_NAMES = PizzaDirector.STEP_NAMES.toArray(new String[0]);
+
+    private static final Ticket CLOSE = new Ticket(null, null, null);
+
+    private static final class Ticket {
+        final PizzaBuilder builder;
+        final Consumer<Pizza> onReady;
+        final Consumer<RuntimeException> onFailure;
+
+        Ticket(PizzaBuilder builder, Consumer<Pizza> onReady, Consumer<RuntimeException> onFailure) {
+            this.builder = builder;
+            this.onReady = onReady;
+            this.onFailure = onFailure;
+        }
+    }
+
+    private final List<BlockingQueue<Ticket>> queues = new ArrayList<>();
+    private final int[] workersPerStage;
+    private final AtomicInteger[] liveWorkers;
+    private final LongAdder[] busyNanos;
+    private final LongAdder[] processed;
+    private final LongAdder failed = new LongAdder();
+    private final CountDownLatch finished;
+    private boolean closed;
+    private final long startNanos = System.nanoTime();
+
+    public PizzaKitchen(int queueCapacity, int... workersPerStage) {
+        if (workersPerStage.length != STAGE_NAMES.length) {
+            throw new IllegalArgumentException("Expected worker counts for " + STAGE_NAMES.length + " stages");
+        }
+        for (int workers : workersPerStage) {
+            if (workers <= 0) {
+                throw new IllegalArgumentException("Every stage needs at least one worker: " + workers);
+            }
+        }
+        this.workersPerStage = workersPerStage.clone();
+        this.liveWorkers = new AtomicInteger[STAGE_NAMES.length];
+        this.busyNanos = new LongAdder[STAGE_NAMES.length];
+        this.processed = new LongAdder[STAGE_NAMES.length];
+        int totalWorkers = 0;
+        for (int stage = 0; stage < STAGE_NAMES.length; stage++) {
+            queues.add(new ArrayBlockingQueue<>(queueCapacity));
+            liveWorkers[stage] = new AtomicInteger(workersPerStage[stage]);
+            busyNanos[stage] = new LongAdder();
+            processed[stage] = new LongAdder();
+            totalWorkers += workersPerStage[stage];
+        }
+        this.finished = new CountDownLatch(totalWorkers);
+        for (int stage = 0; stage < STAGE_NAMES.length; stage++) {
+            for (int w = 0; w < workersPerStage[stage]; w++) {
+                int stageIndex = stage;
+                Thread worker = new Thread(() -> runStage(stageIndex), "kitchen-" + STAGE_NAMES[stage] + "-" + w);
+                worker.setDaemon(true);
+                worker.start();
+            }
+        }
+    }
+
+    // Queues a pizza for construction, blocking while the first stage is full. Failed orders are only counted.
+    public void submit(PizzaBuilder builder, Consumer<Pizza> onReady) throws InterruptedException {
+        submit(builder, onReady, null);
+    }
+
+    public synchronized void submit(PizzaBuilder builder, Consumer<Pizza> onReady,
+                                    Consumer<RuntimeException> onFailure) throws InterruptedException {
+        if (closed) {
+            throw new IllegalStateException("Kitchen is closed");
+        }
+        queues.get(0).put(new Ticket(builder, onReady, onFailure));
+    }
+
+    // Fraction of the stage's worker time spent building since the kitchen opened
+    public double stageUtilization(int stage) {
+        long elapsed = System.nanoTime() - startNanos;
+        return (double) busyNanos[stage].sum() / ((double) elapsed * workersPerStage[stage]);
+    }
+
+    public long stageProcessed(int stage) {
+        return processed[stage].sum();
+    }
+
+    public int stageQueueDepth(int stage) {
+        return queues.get(stage).size();
+    }
+
+    // Orders whose build step or callback threw
+    public long failedOrders() {
+        return failed.sum();
+    }
+
+    // Lets every queued pizza finish, then stops the workers. Waiting is not cut short by an interrupt;
+    // the interrupt status is restored once the kitchen has stopped.
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        boolean interrupted = putUninterruptibly(queues.get(0), workersPerStage[0]);
+        while (true) {
+            try {
+                finished.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runStage(int stage) {
+        BlockingQueue<Ticket> in = queues.get(stage);
+        BlockingQueue<Ticket> out = stage + 1 < queues.size() ? queues.get(stage + 1) : null;
+        Consumer<PizzaBuilder> step = PizzaDirector.STEPS.get(stage);
+        try {
+            while (true) {
+                Ticket ticket = in.take();
+                if (ticket == CLOSE) {
+                    return;
+                }
+
+                long start = System.nanoTime();
+                boolean built = false;
+                try {
+                    step.accept(ticket.builder);
+                    if (out == null) {
+                        ticket.onReady.accept(ticket.builder.getPizza());
+                    }
+                    built = true;
+                } catch (RuntimeException e) {
+                    fail(ticket, e);
+                }
+                busyNanos[stage].add(System.nanoTime() - start);
+                processed[stage].increment();
+
+                if (built && out != null) {
+                    out.put(ticket);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // The last worker of a stage to stop closes the next stage, however it stopped
+            if (liveWorkers[stage].decrementAndGet() == 0 && out != null) {
+                if (putUninterruptibly(out, workersPerStage[stage + 1])) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            finished.countDown();
+        }
+    }
+
+    private void fail(Ticket ticket, RuntimeException failure) {
+        failed.increment();
+        if (ticket.onFailure != null) {
+            try {
+                ticket.onFailure.accept(failure);
+            } catch (RuntimeException e) {
+                failure.addSuppressed(e);
+            }
+        }
+    }
+
+    // Puts count CLOSE markers and returns whether the thread was interrupted while waiting
+    private static boolean putUninterruptibly(BlockingQueue<Ticket> queue, int count) {
+        boolean interrupted = false;
+        for (int put = 0; put < count; ) {
+            try {
+                queue.put(CLOSE);
+                put++;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        return interrupted;
+    }
+}
+
+// PizzaKitchenBenchmark.java - pipeline throughput against the sequential director as the cost of each
+// build step grows. Run with: java PizzaKitchenBenchmark [orders] [workersPerStage]
+class PizzaKitchenBenchmark {
+    // Burns the given time in every build step to stand in for real kitchen work
+    static final class TimedPizzaBuilder extends PizzaBuilder {
+        private final PizzaBuilder recipe;
+        private final long stepNanos;
+
+        TimedPizzaBuilder(PizzaBuilder recipe, long stepNanos) {
+            this.recipe = recipe;
+            this.stepNanos = stepNanos;
+        }
+
+        @Override
+        public Pizza getPizza() {
+            return recipe.getPizza();
+        }
+
+        @Override
+        public void createNewPizza() {
+            recipe.createNewPizza();
+        }
+
+        public void buildCrust() {
+            work();
+            recipe.buildCrust();
+        }
+
+        public void buildSauce() {
+            work();
+            recipe.buildSauce();
+        }
+
+        public void buildCheese() {
+            work();
+            recipe.buildCheese();
+        }
+
+        public void buildToppings() {
+            work();
+            recipe.buildToppings();
+        }
+
+        private void work() {
+            long end = System.nanoTime() + stepNanos;
+            while (System.nanoTime() < end) {
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int orders = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        int workers = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+
+        for (long stepNanos : new long[] {0, 1_000, 10_000, 50_000}) {
+            long start = System.nanoTime();
+            PizzaDirector director = new PizzaDirector(new TimedPizzaBuilder(new VeggiePizzaBuilder(), stepNanos));
+            for (int i = 0; i < orders; i++) {
+                director.constructPizza();
+            }
+            double sequential = orders / ((System.nanoTime() - start) / 1e9);
+
+            CountDownLatch ready = new CountDownLatch(orders);
+            PizzaKitchen kitchen = new PizzaKitchen(256, workers, workers, workers, workers);
+            start = System.nanoTime();
+            for (int i = 0; i < orders; i++) {
+                kitchen.submit(new TimedPizzaBuilder(new VeggiePizzaBuilder(), stepNanos), pizza -> ready.countDown());
+            }
+            ready.await();
+            double pipelined = orders / ((System.nanoTime() - start) / 1e9);
+
+            System.out.printf("step %6d ns: director %,10.0f pizzas/s, kitchen %,10.0f pizzas/s%n",
+                    stepNanos, sequential, pipelined);
+            for (int stage = 0; stage < PizzaKitchen.STAGE_NAMES.length; stage++) {
+                System.out.printf("    %-8s utilization %5.1f%%, processed %d%n", PizzaKitchen.STAGE_NAMES[stage],
+                        100 * kitchen.stageUtilization(stage), kitchen.stageProcessed(stage));
+            }
+            kitchen.close();
+        }
+    }
+}
+
+// PizzaCodec.java - compact binary form of a Pizza: varint crust, sauce and cheese ids plus one (0 for a missing
+// ingredient), then a varint topping count and varint topping ids. Ids are IngredientCatalog ids, so a single
+// encoded pizza is only meaningful to a process with the same catalog; use PizzaStreamWriter/PizzaStreamReader
+// between services.
+final class PizzaCodec {
+    // Largest encoded pizza: three 3-byte base ids, a count byte and 64 one-byte topping ids
+    static final int MAX_PIZZA_BYTES = 3 * 3 + 1 + Long.SIZE;
+
+    private PizzaCodec() {
+    }
+
+    public static void encode(Pizza pizza, ByteBuffer out) {
+        writeVarint(out, pizza.crustId() + 1);
+        writeVarint(out, pizza.sauceId() + 1);
+        writeVarint(out, pizza.cheeseId() + 1);
+        long toppings = pizza.toppingBits();
+        out.put((byte) Long.bitCount(toppings));
+        for (long bits = toppings; bits != 0; bits &= bits - 1) {
+            writeVarint(out, Long.numberOfTrailingZeros(bits));
+        }
+    }
+
+    // Ids that this process's catalog does not know, and truncated input, are rejected with an IOException
+    public static Pizza decode(ByteBuffer in) throws IOException {
+        int crust = checkBase(readVarint(in) - 1);
+        int sauce = checkBase(readVarint(in) - 1);
+        int cheese = checkBase(readVarint(in) - 1);
+        long toppings = 0;
+        for (int count = readCount(in); count > 0; count--) {
+            int topping = readVarint(in);
+            if (topping >= IngredientCatalog.TOPPINGS.size()) {
+                throw new IOException("Unknown topping id: " + topping);
+            }
+            toppings |= 1L << topping;
+        }
+        return Pizza.of(crust, sauce, cheese, toppings);
+    }
+
+    private static int checkBase(int id) throws IOException {
+        if (id < IngredientCatalog.NONE || id >= IngredientCatalog.BASES.size()) {
+            throw new IOException("Unknown base ingredient id: " + id);
+        }
+        return id;
+    }
+
+    // The topping count byte, unsigned; a pizza has at most 64 toppings
+    static int readCount(ByteBuffer in) throws IOException {
+        if (!in.hasRemaining()) {
+            throw new IOException("Truncated pizza record");
+        }
+        int count = in.get() & 0xFF;
+        if (count > Long.SIZE) {
+            throw new IOException("Topping count out of range 0.." + Long.SIZE + ": " + count);
+        }
+        return count;
+    }
+
+    static void writeVarint(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    // Values are non-negative ints; anything longer or larger, or cut off, is malformed
+    static int readVarint(ByteBuffer in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (!in.hasRemaining()) {
+                throw new IOException("Truncated varint");
+            }
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                if (value < 0) {
+                    break;
+                }
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
+
+// PizzaStreamWriter.java - streams large order batches. The first time an ingredient id appears, its name is written
+// as a definition record, so the reader can map the ids onto its own catalog.
+class PizzaStreamWriter implements AutoCloseable {
+    static final byte BASE_DEFINITION = 0;
+    static final byte TOPPING_DEFINITION = 1;
+    static final byte PIZZA = 2;
+    static final int MAX_NAME_BYTES = 1024;
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer;
+    private final BitSet definedBases = new BitSet();
+    private long definedToppings;
+
+    public PizzaStreamWriter(WritableByteChannel channel, int bufferSize) {
+        if (bufferSize < 2 * MAX_NAME_BYTES) {
+            throw new IllegalArgumentException("Buffer must hold at least " + 2 * MAX_NAME_BYTES + " bytes");
+        }
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    public void write(Pizza pizza) throws IOException {
+        defineBase(pizza.crustId());
+        defineBase(pizza.sauceId());
+        defineBase(pizza.cheeseId());
+        long undefined = pizza.toppingBits() & ~definedToppings;
+        for (long bits = undefined; bits != 0; bits &= bits - 1) {
+            int topping = Long.numberOfTrailingZeros(bits);
+            define(TOPPING_DEFINITION, topping, IngredientCatalog.TOPPINGS.name(topping));
+        }
+        definedToppings |= undefined;
+
+        ensureRoom(1 + PizzaCodec.MAX_PIZZA_BYTES);
+        buffer.put(PIZZA);
+        PizzaCodec.encode(pizza, buffer);
+    }
+
+    private void defineBase(int id) throws IOException {
+        if (id != IngredientCatalog.NONE && !definedBases.get(id)) {
+            definedBases.set(id);
+            define(BASE_DEFINITION, id, IngredientCatalog.BASES.name(id));
+        }
+    }
+
+    private void define(byte kind, int id, String name) throws IOException {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_NAME_BYTES) {
+            throw new IllegalArgumentException("Ingredient name too long: " + name);
+        }
+        ensureRoom(1 + 5 + 5 + bytes.length);
+        buffer.put(kind);
+        PizzaCodec.writeVarint(buffer, id);
+        PizzaCodec.writeVarint(buffer, bytes.length);
+        buffer.put(bytes);
+    }
+
+    private void ensureRoom(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+
+    public void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        channel.close();
+    }
+}
+
+// PizzaStreamReader.java - reads what PizzaStreamWriter wrote, translating the writer's ids into local catalog ids.
+// Ids the writer never defined, ids outside the catalogs' ranges and truncated records are rejected with an IOException.
+class PizzaStreamReader implements AutoCloseable {
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer;
+    private final int minimumRecord;
+    private int[] localBases = new int[16];
+    private final BitSet definedBases = new BitSet();
+    private final int[] localToppings = new int[Long.SIZE];
+    private long definedToppings;
+    private boolean endOfInput;
+
+    public PizzaStreamReader(ReadableByteChannel channel, int bufferSize) {
+        if (bufferSize < 2 * PizzaStreamWriter.MAX_NAME_BYTES) {
+            throw new IllegalArgumentException("Buffer must hold at least " + 2 * PizzaStreamWriter.MAX_NAME_BYTES + " bytes");
+        }
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocateDirect(bufferSize);
+        this.buffer.limit(0);
+        this.minimumRecord = 1 + 5 + 5 + PizzaStreamWriter.MAX_NAME_BYTES;
+    }
+
+    // Returns the next pizza, or null at the end of the stream
+    public Pizza read() throws IOException {
+        while (true) {
+            fill();
+            if (!buffer.hasRemaining()) {
+                return null;
+            }
+            byte tag = buffer.get();
+            if (tag == PizzaStreamWriter.PIZZA) {
+                int crust = localBase(PizzaCodec.readVarint(buffer) - 1);
+                int sauce = localBase(PizzaCodec.readVarint(buffer) - 1);
+                int cheese = localBase(PizzaCodec.readVarint(buffer) - 1);
+                long toppings = 0;
+                for (int count = PizzaCodec.readCount(buffer); count > 0; count--) {
+                    toppings |= 1L << localTopping(PizzaCodec.readVarint(buffer));
+                }
+                return Pizza.of(crust, sauce, cheese, toppings);
+            }
+            if (tag != PizzaStreamWriter.BASE_DEFINITION && tag != PizzaStreamWriter.TOPPING_DEFINITION) {
+                throw new IOException("Unknown record tag: " + tag);
+            }
+
+            int remoteId = PizzaCodec.readVarint(buffer);
+            int length = PizzaCodec.readVarint(buffer);
+            if (length > PizzaStreamWriter.MAX_NAME_BYTES || length > buffer.remaining()) {
+                throw new IOException("Truncated or oversized ingredient name: " + length + " bytes");
+            }
+            byte[] name = new byte[length];
+            buffer.get(name);
+            String ingredient = new String(name, StandardCharsets.UTF_8);
+            if (tag == PizzaStreamWriter.BASE_DEFINITION) {
+                if (remoteId >= Character.MAX_VALUE) {
+                    throw new IOException("Base ingredient id out of range: " + remoteId);
+                }
+                if (remoteId >= localBases.length) {
+                    localBases = Arrays.copyOf(localBases, Math.max(remoteId + 1, localBases.length * 2));
+                }
+                localBases[remoteId] = IngredientCatalog.BASES.intern(ingredient);
+                definedBases.set(remoteId);
+            } else {
+                if (remoteId >= Long.SIZE) {
+                    throw new IOException("Topping id out of range 0.." + (Long.SIZE - 1) + ": " + remoteId);
+                }
+                localToppings[remoteId] = IngredientCatalog.TOPPINGS.intern(ingredient);
+                definedToppings |= 1L << remoteId;
+            }
+        }
+    }
+
+    private int localBase(int remoteId) throws IOException {
+        if (remoteId == IngredientCatalog.NONE) {
+            return IngredientCatalog.NONE;
+        }
+        if (!definedBases.get(remoteId)) {
+            throw new IOException("Pizza names undefined base ingredient id: " + remoteId);
+        }
+        return localBases[remoteId];
+    }
+
+    private int localTopping(int remoteId) throws IOException {
+        if (remoteId >= Long.SIZE || (definedToppings & 1L << remoteId) == 0) {
+            throw new IOException("Pizza names undefined topping id: " + remoteId);
+        }
+        return localToppings[remoteId];
+    }
+
+    // Keeps at least one whole record in the buffer unless the input has ended
+    private void fill() throws IOException {
+        if (buffer.remaining() >= minimumRecord || endOfInput) {
+            return;
+        }
+        buffer.compact();
+        while (buffer.position() < minimumRecord && !endOfInput) {
+            if (channel.read(buffer) < 0) {
+                endOfInput = true;
+            }
+        }
+        buffer.flip();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
+
+// PizzaCodecBenchmark.java - binary codec against parsing toString() output and Java serialization.
+// Run with: java PizzaCodecBenchmark [orders]
+class PizzaCodecBenchmark {
+    // What Java serialization would ship: the four descriptive strings
+    static final class PizzaOrder implements Serializable {
+        private static final long serialVersionUID = 1L;
+        final String crust;
+        final String sauce;
+        final String cheese;
+        final String toppings;
+
+        PizzaOrder(String crust, String sauce, String cheese, String toppings) {
+            this.crust = crust;
+            this.sauce = sauce;
+            this.cheese = cheese;
+            this.toppings = toppings;
+        }
+    }
+
+    public static void main(String[] args) throws IOException, ClassNotFoundException {
+        int orders = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        PizzaDirector director = new PizzaDirector(new VeggiePizzaBuilder());
+        director.constructPizza();
+        Pizza veggie = director.getPizza();
+        director.setPizzaBuilder(new MeatLoversPizzaBuilder());
+        director.constructPizza();
+        Pizza meatLovers = director.getPizza();
+
+        for (int round = 0; round < 3; round++) {
+            // Binary stream
+            long start = System.nanoTime();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (PizzaStreamWriter writer = new PizzaStreamWriter(Channels.newChannel(bytes), 64 * 1024)) {
+                for (int i = 0; i < orders; i++) {
+                    writer.write((i & 1) == 0 ? veggie : meatLovers);
+                }
+            }
+            int decoded = 0;
+            try (PizzaStreamReader reader = new PizzaStreamReader(
+                    Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())), 64 * 1024)) {
+                while (reader.read() != null) {
+                    decoded++;
+                }
+            }
+            report("binary stream", start, bytes.size(), decoded);
+
+            // toString and parse back
+            start = System.nanoTime();
+            long textBytes = 0;
+            decoded = 0;
+            for (int i = 0; i < orders; i++) {
+                String text = ((i & 1) == 0 ? veggie : meatLovers).toString();
+                textBytes += text.getBytes(StandardCharsets.UTF_8).length;
+                if (parse(new String(text.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8)) != null) {
+                    decoded++;
+                }
+            }
+            report("toString parsing", start, textBytes, decoded);
+
+            // Java serialization
+            start = System.nanoTime();
+            ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(serialized)) {
+                for (int i = 0; i < orders; i++) {
+                    Pizza pizza = (i & 1) == 0 ? veggie : meatLovers;
+                    String text = pizza.toString();
+                    out.writeObject(new PizzaOrder(pizza.getCrust(), pizza.getSauce(), pizza.getCheese(),
+                            text.substring(text.indexOf("Toppings: ") + 10)));
+                    out.reset();
+                }
+            }
+            decoded = 0;
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized.toByteArray()))) {
+                for (int i = 0; i < orders; i++) {
+                    PizzaOrder order = (PizzaOrder) in.readObject();
+                    if (order.crust != null) {
+                        decoded++;
+                    }
+                }
+            }
+            report("java serialization", start, serialized.size(), decoded);
+            System.out.println();
+        }
+    }
+
+    private static Pizza parse(String text) {
+        String[] fields = text.split(", (?=Sauce: |Cheese: |Toppings: )");
+        int crust = IngredientCatalog.BASES.intern(fields[0].substring("Crust: ".length()));
+        int sauce = IngredientCatalog.BASES.intern(fields[1].substring("Sauce: ".length()));
+        int cheese = IngredientCatalog.BASES.intern(fields[2].substring("Cheese: ".length()));
+        long toppings = 0;
+        for (String topping : fields[3].substring("Toppings: ".length()).split(", ")) {
+            toppings |= 1L << IngredientCatalog.TOPPINGS.intern(topping);
+        }
+        return Pizza.of(crust, sauce, cheese, toppings);
+    }
+
+    private static void report(String name, long start, long bytes, int decoded) {
+        System.out.printf("%-20s %7.1f ms, %5.1f bytes/order, %d decoded%n",
+                name, (System.nanoTime() - start) / 1e6, (double) bytes / decoded, decoded);
+    }
+}
+
+// PizzaAllocationBenchmark.java - compares building orders the old way (a new mutable pizza per order)
+// with the immutable, interned Pizza. Run with: java PizzaAllocationBenchmark [orders]
+class PizzaAllocationBenchmark {
+    // The previous Pizza representation, kept here only as the baseline
+    static final class MutablePizza {
+        String crust;
+        String sauce;
+        String cheese;
+        String toppings;
+    }
+
+    public static void main(String[] args) {
+        int orders = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        List<Object> kept = new ArrayList<>(orders);
+        long heapBefore = usedHeap();
+        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < orders; i++) {
+            MutablePizza pizza = new MutablePizza();
+            boolean veggie = (i & 1) == 0;
+            pizza.crust = veggie ? "Thin Crust" : "Thick Crust";
+            pizza.sauce = veggie ? "Tomato Sauce" : "Barbecue Sauce";
+            pizza.cheese = veggie ? "Mozzarella Cheese" : "Cheddar Cheese";
+            pizza.toppings = veggie ? "Mushrooms, Bell Peppers, Olives, Onions" : "Pepperoni, Sausage, Bacon, Ham";
+            kept.add(pizza);
+        }
+        report("mutable pizza", orders, start, threads.getThreadAllocatedBytes(threadId) - allocatedBefore,
+                usedHeap() - heapBefore);
+        kept.clear();
+
+        PizzaBuilder veggie = new VeggiePizzaBuilder();
+        PizzaBuilder meatLovers = new MeatLoversPizzaBuilder();
+        heapBefore = usedHeap();
+        allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        start = System.nanoTime();
+        for (int i = 0; i < orders; i++) {
+            PizzaDirector director = new PizzaDirector((i & 1) == 0 ? veggie : meatLovers);
+            director.constructPizza();
+            kept.add(director.getPizza());
+        }
+        report("interned immutable", orders, start, threads.getThreadAllocatedBytes(threadId) - allocatedBefore,
+                usedHeap() - heapBefore);
+    }
+
+    private static void report(String name, int orders, long start, long allocated, long retained) {
+        System.out.printf("%-20s %6.1f ms, %6.1f bytes allocated/order, %6.1f bytes retained/order%n",
+                name, (System.nanoTime() - start) / 1e6, (double) allocated / orders, (double) retained / orders);
+    }
+
+    private static long usedHeap() {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
     }
 }
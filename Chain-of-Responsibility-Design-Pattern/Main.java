@@ -1,3 +1,26 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
 // Author - Given Lepita
 
 /* 
@@ -17,7 +40,37 @@
 // OrderHandler interface
 interface OrderHandler {
     void setNextHandler(OrderHandler nextHandler);
+    OrderHandler getNextHandler();
     void processOrder(Order order);
+
+    // This handler's own step, without passing the order on; returns false if the order was rejected
+    boolean handle(Order order);
+
+    // Batch form of processOrder: runs this handler over the whole batch, then passes the survivors along
+    default void processOrders(OrderBatch batch) {
+        OrderHandler next = getNextHandler();
+        if (handleBatch(batch) && next != null) {
+            next.processOrders(batch);
+        }
+    }
+
+    // Batch form of handle: drops rejected orders from the batch and returns false once none are left.
+    // The default goes through handle one order at a time, writing whatever the handler changed on each
+    // order back into the columns; handlers override it with loops over the columns.
+    default boolean handleBatch(OrderBatch batch) {
+        int kept = 0;
+        for (int k = 0; k < batch.liveCount; k++) {
+            int index = batch.live[k];
+            Order order = batch.order(index);
+            boolean passed = handle(order);
+            batch.store(index, order);
+            if (passed) {
+                batch.live[kept++] = index;
+            }
+        }
+        batch.liveCount = kept;
+        return kept > 0;
+    }
 }
 
 // PaymentHandler
@@ -29,18 +82,36 @@ class PaymentHandler implements OrderHandler {
         this.nextHandler = nextHandler;
     }
 
+    @Override
+    public OrderHandler getNextHandler() {
+        return nextHandler;
+    }
+
     @Override
     public void processOrder(Order order) {
-        // Check payment method and process payment
         // If payment successful, move to the next handler
+        if (handle(order) && nextHandler != null) {
+            nextHandler.processOrder(order);
+        }
+    }
+
+    @Override
+    public boolean handle(Order order) {
+        // Check payment method and process payment
         if (order.isPaymentProcessed()) {
             System.out.println("Payment processed successfully.");
-            if (nextHandler != null) {
-                nextHandler.processOrder(order);
-            }
-        } else {
-            System.out.println("Payment failed. Order processing halted.");
+            return true;
         }
+        System.out.println("Payment failed. Order processing halted.");
+        return false;
+    }
+
+    @Override
+    public boolean handleBatch(OrderBatch batch) {
+        int before = batch.liveCount;
+        int passed = batch.retain(batch.paymentProcessed);
+        System.out.println("Payment processed successfully for " + passed + " of " + before + " orders.");
+        return passed > 0;
     }
 }
 
@@ -53,18 +124,36 @@ class StockHandler implements OrderHandler {
         this.nextHandler = nextHandler;
     }
 
+    @Override
+    public OrderHandler getNextHandler() {
+        return nextHandler;
+    }
+
     @Override
     public void processOrder(Order order) {
-        // Check stock availability
         // If stock available, move to the next handler
+        if (handle(order) && nextHandler != null) {
+            nextHandler.processOrder(order);
+        }
+    }
+
+    @Override
+    public boolean handle(Order order) {
+        // Check stock availability
         if (order.isStockAvailable()) {
             System.out.println("Stock is available.");
-            if (nextHandler != null) {
-                nextHandler.processOrder(order);
-            }
-        } else {
-            System.out.println("Stock not available. Order processing halted.");
+            return true;
         }
+        System.out.println("Stock not available. Order processing halted.");
+        return false;
+    }
+
+    @Override
+    public boolean handleBatch(OrderBatch batch) {
+        int before = batch.liveCount;
+        int passed = batch.retain(batch.stockAvailable);
+        System.out.println("Stock is available for " + passed + " of " + before + " orders.");
+        return passed > 0;
     }
 }
 
@@ -77,14 +166,30 @@ class DiscountHandler implements OrderHandler {
         this.nextHandler = nextHandler;
     }
 
+    @Override
+    public OrderHandler getNextHandler() {
+        return nextHandler;
+    }
+
     @Override
     public void processOrder(Order order) {
-        // Apply discounts to the order
-        System.out.println("Discounts applied.");
-        if (nextHandler != null) {
+        if (handle(order) && nextHandler != null) {
             nextHandler.processOrder(order);
         }
     }
+
+    @Override
+    public boolean handle(Order order) {
+        // Apply discounts to the order
+        System.out.println("Discounts applied.");
+        return true;
+    }
+
+    @Override
+    public boolean handleBatch(OrderBatch batch) {
+        System.out.println("Discounts applied to " + batch.liveCount + " orders.");
+        return batch.liveCount > 0;
+    }
 }
 
 // ShippingHandler
@@ -96,14 +201,30 @@ class ShippingHandler implements OrderHandler {
         this.nextHandler = nextHandler;
     }
 
+    @Override
+    public OrderHandler getNextHandler() {
+        return nextHandler;
+    }
+
     @Override
     public void processOrder(Order order) {
-        // Calculate shipping costs
-        System.out.println("Shipping costs calculated.");
-        if (nextHandler != null) {
+        if (handle(order) && nextHandler != null) {
             nextHandler.processOrder(order);
         }
     }
+
+    @Override
+    public boolean handle(Order order) {
+        // Calculate shipping costs
+        System.out.println("Shipping costs calculated.");
+        return true;
+    }
+
+    @Override
+    public boolean handleBatch(OrderBatch batch) {
+        System.out.println("Shipping costs calculated for " + batch.liveCount + " orders.");
+        return batch.liveCount > 0;
+    }
 }
 
 // ConfirmationHandler
@@ -115,11 +236,37 @@ class ConfirmationHandler implements OrderHandler {
         this.nextHandler = nextHandler;
     }
 
+    @Override
+    public OrderHandler getNextHandler() {
+        return nextHandler;
+    }
+
     @Override
     public void processOrder(Order order) {
+        // Confirmation is the end of the chain
+        handle(order);
+    }
+
+    @Override
+    public boolean handle(Order order) {
         // Confirm the order
         order.confirmOrder();
         System.out.println("Order confirmed successfully.");
+        return true;
+    }
+
+    @Override
+    public void processOrders(OrderBatch batch) {
+        handleBatch(batch);
+    }
+
+    @Override
+    public boolean handleBatch(OrderBatch batch) {
+        for (int k = 0; k < batch.liveCount; k++) {
+            batch.confirmed[batch.live[k]] = true;
+        }
+        System.out.println(batch.liveCount + " orders confirmed successfully.");
+        return batch.liveCount > 0;
     }
 }
 
@@ -127,12 +274,18 @@ class ConfirmationHandler implements OrderHandler {
 class Order {
     private boolean paymentProcessed;
     private boolean stockAvailable;
+    private boolean confirmed;
 
     public Order(boolean paymentProcessed, boolean stockAvailable) {
         this.paymentProcessed = paymentProcessed;
         this.stockAvailable = stockAvailable;
     }
 
+    Order(boolean paymentProcessed, boolean stockAvailable, boolean confirmed) {
+        this(paymentProcessed, stockAvailable);
+        this.confirmed = confirmed;
+    }
+
     public boolean isPaymentProcessed() {
         return paymentProcessed;
     }
@@ -144,6 +297,606 @@ class Order {
     public void confirmOrder() {
         // Logic to confirm the order.
         // Later to be done should need be.
+        confirmed = true;
+    }
+
+    public boolean isConfirmed() {
+        return confirmed;
+    }
+}
+
+// A batch of orders held column by column, so each handler's predicate is a tight loop over one array.
+// live holds the indices of the orders still in the chain.
+class OrderBatch {
+    final boolean[] paymentProcessed;
+    final boolean[] stockAvailable;
+    final boolean[] confirmed;
+    final int[] live;
+    int liveCount;
+    private int size;
+
+    OrderBatch(int capacity) {
+        paymentProcessed = new boolean[capacity];
+        stockAvailable = new boolean[capacity];
+        confirmed = new boolean[capacity];
+        live = new int[capacity];
+    }
+
+    int add(boolean paymentProcessed, boolean stockAvailable) {
+        int index = size++;
+        this.paymentProcessed[index] = paymentProcessed;
+        this.stockAvailable[index] = stockAvailable;
+        confirmed[index] = false;
+        live[liveCount++] = index;
+        return index;
+    }
+
+    // Keeps only the live orders whose flag is set, without branching, and returns how many are left
+    int retain(boolean[] column) {
+        int kept = 0;
+        for (int k = 0; k < liveCount; k++) {
+            int index = live[k];
+            live[kept] = index;
+            kept += column[index] ? 1 : 0;
+        }
+        liveCount = kept;
+        return kept;
+    }
+
+    // Row view for handlers without a column loop; store writes the row back after the handler ran
+    Order order(int index) {
+        return new Order(paymentProcessed[index], stockAvailable[index], confirmed[index]);
+    }
+
+    void store(int index, Order order) {
+        paymentProcessed[index] = order.isPaymentProcessed();
+        stockAvailable[index] = order.isStockAvailable();
+        confirmed[index] = order.isConfirmed();
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        size = 0;
+        liveCount = 0;
+    }
+}
+
+// Compiled chain: the handlers are flattened into an array and run in a loop, so the stack depth stays
+// constant however long the chain is. Processing stops at the first handler that rejects the order.
+final class CompiledOrderChain implements OrderHandler {
+    private final OrderHandler[] handlers;
+    private OrderHandler nextHandler;
+
+    CompiledOrderChain(OrderHandler[] handlers) {
+        this.handlers = handlers;
+    }
+
+    @Override
+    public void setNextHandler(OrderHandler nextHandler) {
+        this.nextHandler = nextHandler;
+    }
+
+    @Override
+    public OrderHandler getNextHandler() {
+        return nextHandler;
+    }
+
+    @Override
+    public void processOrder(Order order) {
+        if (handle(order) && nextHandler != null) {
+            nextHandler.processOrder(order);
+        }
+    }
+
+    @Override
+    public boolean handle(Order order) {
+        for (OrderHandler handler : handlers) {
+            if (!handler.handle(order)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean handleBatch(OrderBatch batch) {
+        for (OrderHandler handler : handlers) {
+            if (!handler.handleBatch(batch)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int length() {
+        return handlers.length;
+    }
+}
+
+// Builder that collects handlers in order and compiles them into a CompiledOrderChain
+class OrderChainBuilder {
+    private final List<OrderHandler> handlers = new ArrayList<>();
+    private ChainMetrics metrics;
+
+    public OrderChainBuilder then(OrderHandler handler) {
+        handlers.add(metrics == null ? handler : metrics.instrument(handler));
+        return this;
+    }
+
+    // Handlers added after this call are wrapped to record their latency and pass/reject counts
+    public OrderChainBuilder instrumentedWith(ChainMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    public CompiledOrderChain build() {
+        return new CompiledOrderChain(handlers.toArray(new OrderHandler[0]));
+    }
+}
+
+// Asynchronous order handler: the step completes later instead of blocking the caller.
+// The future holds false if the order was rejected.
+interface AsyncOrderHandler {
+    CompletableFuture<Boolean> handleAsync(Order order);
+
+    // Runs a synchronous handler's step inline, for cheap local steps such as discounts
+    static AsyncOrderHandler fromSync(OrderHandler handler) {
+        return order -> CompletableFuture.completedFuture(handler.handle(order));
+    }
+}
+
+// In-process stand-in for the payment system, answering after an injected latency
+class PaymentService {
+    private final Executor delayed;
+
+    PaymentService(long latencyMillis) {
+        this.delayed = CompletableFuture.delayedExecutor(latencyMillis, TimeUnit.MILLISECONDS);
+    }
+
+    CompletableFuture<Boolean> charge(Order order) {
+        return CompletableFuture.supplyAsync(order::isPaymentProcessed, delayed);
+    }
+}
+
+// In-process stand-in for the inventory system, answering after an injected latency
+class InventoryService {
+    private final Executor delayed;
+
+    InventoryService(long latencyMillis) {
+        this.delayed = CompletableFuture.delayedExecutor(latencyMillis, TimeUnit.MILLISECONDS);
+    }
+
+    CompletableFuture<Boolean> reserve(Order order) {
+        return CompletableFuture.supplyAsync(order::isStockAvailable, delayed);
+    }
+}
+
+// AsyncPaymentHandler
+class AsyncPaymentHandler implements AsyncOrderHandler {
+    private final PaymentService paymentService;
+
+    AsyncPaymentHandler(PaymentService paymentService) {
+        this.paymentService = paymentService;
+    }
+
+    @Override
+    public CompletableFuture<Boolean> handleAsync(Order order) {
+        return paymentService.charge(order);
+    }
+}
+
+// AsyncStockHandler
+class AsyncStockHandler implements AsyncOrderHandler {
+    private final InventoryService inventoryService;
+
+    AsyncStockHandler(InventoryService inventoryService) {
+        this.inventoryService = inventoryService;
+    }
+
+    @Override
+    public CompletableFuture<Boolean> handleAsync(Order order) {
+        return inventoryService.reserve(order);
+    }
+}
+
+// Caps how many calls to one handler are in flight; calls over the limit wait in a queue without holding a thread
+class ConcurrencyLimiter {
+    private final int limit;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final ConcurrentLinkedQueue<Runnable> waiting = new ConcurrentLinkedQueue<>();
+
+    ConcurrencyLimiter(int limit) {
+        this.limit = limit;
+    }
+
+    <T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> call) {
+        return submit(call, 0);
+    }
+
+    // The timeout runs from the moment the call starts and only fails the returned future; the permit is held
+    // until the call's own future completes, so the limit bounds the calls really in flight
+    <T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> call, long timeoutMillis) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        waiting.add(() -> {
+            if (timeoutMillis > 0) {
+                result.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+            CompletableFuture<T> started;
+            try {
+                started = call.get();
+            } catch (RuntimeException e) {
+                started = CompletableFuture.failedFuture(e);
+            }
+            started.whenComplete((value, error) -> {
+                release();
+                if (error != null) {
+                    result.completeExceptionally(error);
+                } else {
+                    result.complete(value);
+                }
+            });
+        });
+        drain();
+        return result;
+    }
+
+    int inFlight() {
+        return inFlight.get();
+    }
+
+    private void release() {
+        inFlight.decrementAndGet();
+        drain();
+    }
+
+    private void drain() {
+        while (!waiting.isEmpty()) {
+            int current = inFlight.get();
+            if (current >= limit) {
+                return;
+            }
+            if (!inFlight.compareAndSet(current, current + 1)) {
+                continue;
+            }
+            Runnable call = waiting.poll();
+            if (call == null) {
+                inFlight.decrementAndGet();
+            } else {
+                call.run();
+            }
+        }
+    }
+}
+
+// Non-blocking chain: each handler runs once the previous one has passed the order, under its own timeout and
+// concurrency limit. A rejection completes the result with false; a timeout completes it exceptionally.
+class AsyncOrderChain {
+    private static final class Stage {
+        final AsyncOrderHandler handler;
+        final long timeoutMillis;
+        final ConcurrencyLimiter limiter;
+
+        Stage(AsyncOrderHandler handler, long timeoutMillis, int maxConcurrency) {
+            this.handler = handler;
+            this.timeoutMillis = timeoutMillis;
+            this.limiter = new ConcurrencyLimiter(maxConcurrency);
+        }
+    }
+
+    private final List<Stage> stages = new ArrayList<>();
+
+    public AsyncOrderChain then(AsyncOrderHandler handler, long timeoutMillis, int maxConcurrency) {
+        stages.add(new Stage(handler, timeoutMillis, maxConcurrency));
+        return this;
+    }
+
+    public CompletableFuture<Boolean> processOrderAsync(Order order) {
+        return runFrom(0, order);
+    }
+
+    private CompletableFuture<Boolean> runFrom(int index, Order order) {
+        if (index == stages.size()) {
+            return CompletableFuture.completedFuture(true);
+        }
+        Stage stage = stages.get(index);
+        return stage.limiter
+                .submit(() -> stage.handler.handleAsync(order), stage.timeoutMillis)
+                .thenCompose(passed -> passed ? runFrom(index + 1, order) : CompletableFuture.completedFuture(false));
+    }
+}
+
+// Latency histogram with power-of-two nanosecond buckets; recording is a single LongAdder increment
+class LatencyHistogram {
+    private final LongAdder[] buckets = new LongAdder[Long.SIZE];
+
+    LatencyHistogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    void record(long nanos) {
+        buckets[Long.SIZE - Long.numberOfLeadingZeros(Math.max(nanos, 0))].increment();
+    }
+
+    long count() {
+        long count = 0;
+        for (LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    // Upper bound of the bucket holding the given percentile (0-100)
+    long percentileNanos(double percentile) {
+        long[] counts = new long[buckets.length];
+        long total = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            counts[i] = buckets[i].sum();
+            total += counts[i];
+        }
+        long rank = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0) {
+                return i == 0 ? 0 : (1L << i) - 1;
+            }
+        }
+        return 0;
+    }
+}
+
+// Counters and latency for one handler in an instrumented chain. Single orders and whole batches are timed in
+// separate histograms, since a batch call takes far longer than one order.
+class HandlerMetrics {
+    private final String name;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LatencyHistogram batchLatency = new LatencyHistogram();
+    private final LongAdder passed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final long startNanos = System.nanoTime();
+
+    HandlerMetrics(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getPassed() {
+        return passed.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public long getP50Nanos() {
+        return latency.percentileNanos(50);
+    }
+
+    public long getP99Nanos() {
+        return latency.percentileNanos(99);
+    }
+
+    public long getBatchP50Nanos() {
+        return batchLatency.percentileNanos(50);
+    }
+
+    public long getBatchP99Nanos() {
+        return batchLatency.percentileNanos(99);
+    }
+
+    // Orders handled per second since the chain was instrumented
+    public double getThroughput() {
+        return (passed.sum() + rejected.sum()) / ((System.nanoTime() - startNanos) / 1e9);
+    }
+
+    void count(boolean passedOrder) {
+        (passedOrder ? passed : rejected).increment();
+    }
+
+    void record(long nanos, long passedOrders, long rejectedOrders) {
+        latency.record(nanos);
+        count(passedOrders, rejectedOrders);
+    }
+
+    void recordBatch(long nanos, long passedOrders, long rejectedOrders) {
+        batchLatency.record(nanos);
+        count(passedOrders, rejectedOrders);
+    }
+
+    private void count(long passedOrders, long rejectedOrders) {
+        if (passedOrders != 0) {
+            passed.add(passedOrders);
+        }
+        if (rejectedOrders != 0) {
+            rejected.add(rejectedOrders);
+        }
+    }
+}
+
+// Wraps any handler to time its own step and count what it passes and rejects. The link to the next handler
+// stays on the wrapped handler, so wrapping the head of an already linked chain keeps the rest of the chain.
+class InstrumentedOrderHandler implements OrderHandler {
+    private final OrderHandler handler;
+    private final HandlerMetrics metrics;
+    private final int sampleMask;
+    private int calls;
+
+    InstrumentedOrderHandler(OrderHandler handler, HandlerMetrics metrics, int sampleEvery) {
+        this.handler = handler;
+        this.metrics = metrics;
+        this.sampleMask = sampleEvery - 1;
+    }
+
+    @Override
+    public void setNextHandler(OrderHandler nextHandler) {
+        handler.setNextHandler(nextHandler);
+    }
+
+    @Override
+    public OrderHandler getNextHandler() {
+        return handler.getNextHandler();
+    }
+
+    @Override
+    public void processOrder(Order order) {
+        OrderHandler next = handler.getNextHandler();
+        if (handle(order) && next != null) {
+            next.processOrder(order);
+        }
+    }
+
+    // Counts every order but only times one call in every sampleMask + 1, since reading the clock
+    // costs more than most handlers. The call counter is racy on purpose; it only picks samples.
+    @Override
+    public boolean handle(Order order) {
+        if ((++calls & sampleMask) != 0) {
+            boolean passed = handler.handle(order);
+            metrics.count(passed);
+            return passed;
+        }
+        long start = System.nanoTime();
+        boolean passed = handler.handle(order);
+        metrics.record(System.nanoTime() - start, passed ? 1 : 0, passed ? 0 : 1);
+        return passed;
+    }
+
+    @Override
+    public boolean handleBatch(OrderBatch batch) {
+        int before = batch.liveCount;
+        long start = System.nanoTime();
+        boolean any = handler.handleBatch(batch);
+        metrics.recordBatch(System.nanoTime() - start, batch.liveCount, before - batch.liveCount);
+        return any;
+    }
+}
+
+// Metrics for every handler in a chain, readable through snapshot() or as a JMX MBean with attributes named
+// "<Handler>#<position>.<Metric>", e.g. "StockHandler#1.Rejected". The position is the order in which handlers
+// were instrumented, so two handlers of the same class get distinct attributes.
+class ChainMetrics implements DynamicMBean {
+    private static final String[] METRICS =
+            {"Passed", "Rejected", "P50Nanos", "P99Nanos", "BatchP50Nanos", "BatchP99Nanos", "Throughput"};
+
+    private final List<HandlerMetrics> handlers = new ArrayList<>();
+    private final int sampleEvery;
+
+    public ChainMetrics() {
+        this(16);
+    }
+
+    // Times one call in every sampleEvery (a power of two); pass/reject counts are always exact
+    public ChainMetrics(int sampleEvery) {
+        if (Integer.bitCount(sampleEvery) != 1) {
+            throw new IllegalArgumentException("Sample interval must be a power of two: " + sampleEvery);
+        }
+        this.sampleEvery = sampleEvery;
+    }
+
+    public synchronized OrderHandler instrument(OrderHandler handler) {
+        HandlerMetrics metrics = new HandlerMetrics(handler.getClass().getSimpleName() + "#" + handlers.size());
+        handlers.add(metrics);
+        return new InstrumentedOrderHandler(handler, metrics, sampleEvery);
+    }
+
+    public synchronized List<HandlerMetrics> handlers() {
+        return new ArrayList<>(handlers);
+    }
+
+    public void registerMBean(String name) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(name));
+    }
+
+    public String snapshot() {
+        StringBuilder report = new StringBuilder();
+        for (HandlerMetrics handler : handlers()) {
+            report.append(String.format("%-22s passed %8d, rejected %8d, p50 %6d ns, p99 %6d ns, "
+                            + "batch p50 %8d ns, batch p99 %8d ns, %,.0f orders/s%n",
+                    handler.getName(), handler.getPassed(), handler.getRejected(),
+                    handler.getP50Nanos(), handler.getP99Nanos(),
+                    handler.getBatchP50Nanos(), handler.getBatchP99Nanos(), handler.getThroughput()));
+        }
+        return report.toString();
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        int dot = attribute.lastIndexOf('.');
+        if (dot > 0) {
+            String name = attribute.substring(0, dot);
+            for (HandlerMetrics handler : handlers()) {
+                if (handler.getName().equals(name)) {
+                    switch (attribute.substring(dot + 1)) {
+                        case "Passed":
+                            return handler.getPassed();
+                        case "Rejected":
+                            return handler.getRejected();
+                        case "P50Nanos":
+                            return handler.getP50Nanos();
+                        case "P99Nanos":
+                            return handler.getP99Nanos();
+                        case "BatchP50Nanos":
+                            return handler.getBatchP50Nanos();
+                        case "BatchP99Nanos":
+                            return handler.getBatchP99Nanos();
+                        case "Throughput":
+                            return handler.getThroughput();
+                        default:
+                            break;
+                    }
+                }
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException e) {
+                // Unknown attributes are left out, as the DynamicMBean contract allows
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Chain metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName), "Chain metrics have no operations");
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (HandlerMetrics handler : handlers()) {
+            for (String metric : METRICS) {
+                String type = metric.equals("Throughput") ? "double" : "long";
+                attributes.add(new MBeanAttributeInfo(handler.getName() + "." + metric, type,
+                        metric + " of " + handler.getName(), true, false, false));
+            }
+        }
+        return new MBeanInfo(getClass().getName(), "Order handler chain metrics",
+                attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
     }
 }
 
@@ -153,14 +906,331 @@ public class Main {
         // Sample order
         Order order = new Order(true, true);
 
-        // Build the chain of responsibility
-        OrderHandler chain = new PaymentHandler();
-        chain.setNextHandler(new StockHandler());
-        chain.setNextHandler(new DiscountHandler());
-        chain.setNextHandler(new ShippingHandler());
-        chain.setNextHandler(new ConfirmationHandler());
+        // Build the chain of responsibility, linking each handler to the one after it
+        OrderHandler payment = new PaymentHandler();
+        OrderHandler stock = new StockHandler();
+        OrderHandler discount = new DiscountHandler();
+        OrderHandler shipping = new ShippingHandler();
+        payment.setNextHandler(stock);
+        stock.setNextHandler(discount);
+        discount.setNextHandler(shipping);
+        shipping.setNextHandler(new ConfirmationHandler());
+        OrderHandler chain = payment;
 
         // Process the order with use of the chain of responsibility
         chain.processOrder(order);
+
+        // The same chain compiled into a flat array and run iteratively
+        System.out.println();
+        CompiledOrderChain compiledChain = new OrderChainBuilder()
+                .then(new PaymentHandler())
+                .then(new StockHandler())
+                .then(new DiscountHandler())
+                .then(new ShippingHandler())
+                .then(new ConfirmationHandler())
+                .build();
+        compiledChain.processOrder(order);
+
+        // An order without stock stops at the StockHandler
+        System.out.println();
+        compiledChain.processOrder(new Order(true, false));
+
+        // A whole batch goes through each handler before the survivors move on
+        System.out.println();
+        OrderBatch batch = new OrderBatch(4);
+        batch.add(true, true);
+        batch.add(false, true);
+        batch.add(true, false);
+        batch.add(true, true);
+        compiledChain.processOrders(batch);
+
+        // The asynchronous chain calls out to the payment and inventory services without blocking
+        System.out.println();
+        AsyncOrderChain asyncChain = new AsyncOrderChain()
+                .then(new AsyncPaymentHandler(new PaymentService(20)), 500, 64)
+                .then(new AsyncStockHandler(new InventoryService(30)), 500, 64)
+                .then(AsyncOrderHandler.fromSync(new DiscountHandler()), 500, 64)
+                .then(AsyncOrderHandler.fromSync(new ShippingHandler()), 500, 64)
+                .then(AsyncOrderHandler.fromSync(new ConfirmationHandler()), 500, 64);
+        boolean accepted = asyncChain.processOrderAsync(order).join();
+        System.out.println("Asynchronous chain accepted the order: " + accepted);
+
+        // An instrumented chain keeps latency and pass/reject counts per handler
+        System.out.println();
+        ChainMetrics metrics = new ChainMetrics(1);
+        CompiledOrderChain instrumentedChain = new OrderChainBuilder()
+                .instrumentedWith(metrics)
+                .then(new PaymentHandler())
+                .then(new StockHandler())
+                .then(new DiscountHandler())
+                .then(new ShippingHandler())
+                .then(new ConfirmationHandler())
+                .build();
+        instrumentedChain.processOrder(order);
+        instrumentedChain.processOrder(new Order(false, true));
+        try {
+            metrics.registerMBean("OrderProcessing:type=ChainMetrics");
+            System.out.println("JMX StockHandler#1.Passed = "
+                    + ManagementFactory.getPlatformMBeanServer().getAttribute(
+                            new ObjectName("OrderProcessing:type=ChainMetrics"), "StockHandler#1.Passed"));
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+        System.out.print(metrics.snapshot());
+    }
+}
+
+// Linked (recursive) chains against compiled (iterative) chains at lengths 5 to 500.
+// Run with: java ChainBenchmark [orders]
+class ChainBenchmark {
+    // A cheap handler, so the benchmark measures the dispatch rather than the printing
+    static final class CheckHandler implements OrderHandler {
+        private OrderHandler nextHandler;
+        long passed;
+
+        @Override
+        public void setNextHandler(OrderHandler nextHandler) {
+            this.nextHandler = nextHandler;
+        }
+
+        @Override
+        public OrderHandler getNextHandler() {
+            return nextHandler;
+        }
+
+        @Override
+        public void processOrder(Order order) {
+            if (handle(order) && nextHandler != null) {
+                nextHandler.processOrder(order);
+            }
+        }
+
+        @Override
+        public boolean handle(Order order) {
+            if (order.isPaymentProcessed() && order.isStockAvailable()) {
+                passed++;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    public static void main(String[] args) {
+        int orders = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        Order order = new Order(true, true);
+
+        for (int length : new int[] {5, 50, 500}) {
+            CheckHandler[] linked = new CheckHandler[length];
+            OrderChainBuilder builder = new OrderChainBuilder();
+            for (int i = 0; i < length; i++) {
+                linked[i] = new CheckHandler();
+                if (i > 0) {
+                    linked[i - 1].setNextHandler(linked[i]);
+                }
+                builder.then(new CheckHandler());
+            }
+            CompiledOrderChain compiled = builder.build();
+
+            for (int round = 0; round < 3; round++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < orders; i++) {
+                    linked[0].processOrder(order);
+                }
+                long linkedNanos = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                for (int i = 0; i < orders; i++) {
+                    compiled.processOrder(order);
+                }
+                long compiledNanos = System.nanoTime() - start;
+
+                if (round == 2) {
+                    System.out.printf("length %3d: linked %6.1f ns/hop, compiled %6.1f ns/hop%n", length,
+                            (double) linkedNanos / orders / length, (double) compiledNanos / orders / length);
+                }
+            }
+        }
+    }
+}
+
+// Blocking chain against the asynchronous chain when the payment and inventory services are slow.
+// Run with: java AsyncChainBenchmark [orders] [latencyMillis] [blockingThreads]
+class AsyncChainBenchmark {
+    public static void main(String[] args) throws InterruptedException {
+        int orders = args.length > 0 ? Integer.parseInt(args[0]) : 5_000;
+        long latency = args.length > 1 ? Long.parseLong(args[1]) : 10;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        PaymentService payments = new PaymentService(latency);
+        InventoryService inventory = new InventoryService(latency);
+        Order order = new Order(true, true);
+
+        // Blocking: every order holds a pool thread while it waits on each service
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        List<CompletableFuture<Boolean>> results = new ArrayList<>(orders);
+        for (int i = 0; i < orders; i++) {
+            results.add(CompletableFuture.supplyAsync(
+                    () -> payments.charge(order).join() && inventory.reserve(order).join(), pool));
+        }
+        results.forEach(CompletableFuture::join);
+        report("blocking, " + threads + " threads", orders, start);
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.MINUTES);
+
+        // Asynchronous: only the concurrency limits bound the orders in flight
+        AsyncOrderChain chain = new AsyncOrderChain()
+                .then(new AsyncPaymentHandler(payments), 5_000, 1_024)
+                .then(new AsyncStockHandler(inventory), 5_000, 1_024);
+        start = System.nanoTime();
+        results.clear();
+        for (int i = 0; i < orders; i++) {
+            results.add(chain.processOrderAsync(order));
+        }
+        results.forEach(CompletableFuture::join);
+        report("asynchronous", orders, start);
+    }
+
+    private static void report(String name, int orders, long start) {
+        System.out.printf("%-22s %,10.0f orders/s%n", name, orders / ((System.nanoTime() - start) / 1e9));
+    }
+}
+
+// Per-order dispatch against column-wise batches through the same compiled chain.
+// Run with: java BatchChainBenchmark [orders] [batchSize]
+class BatchChainBenchmark {
+    // Silent payment check, so the benchmark measures the dispatch rather than the printing
+    static final class PaymentCheck implements OrderHandler {
+        public void setNextHandler(OrderHandler nextHandler) {
+        }
+
+        public OrderHandler getNextHandler() {
+            return null;
+        }
+
+        public void processOrder(Order order) {
+            handle(order);
+        }
+
+        public boolean handle(Order order) {
+            return order.isPaymentProcessed();
+        }
+
+        @Override
+        public boolean handleBatch(OrderBatch batch) {
+            return batch.retain(batch.paymentProcessed) > 0;
+        }
+    }
+
+    // Silent stock check
+    static final class StockCheck implements OrderHandler {
+        public void setNextHandler(OrderHandler nextHandler) {
+        }
+
+        public OrderHandler getNextHandler() {
+            return null;
+        }
+
+        public void processOrder(Order order) {
+            handle(order);
+        }
+
+        public boolean handle(Order order) {
+            return order.isStockAvailable();
+        }
+
+        @Override
+        public boolean handleBatch(OrderBatch batch) {
+            return batch.retain(batch.stockAvailable) > 0;
+        }
+    }
+
+    public static void main(String[] args) {
+        int orders = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        int batchSize = args.length > 1 ? Integer.parseInt(args[1]) : 4_096;
+        Random random = new Random(7);
+        boolean[] paid = new boolean[orders];
+        boolean[] inStock = new boolean[orders];
+        Order[] single = new Order[orders];
+        for (int i = 0; i < orders; i++) {
+            paid[i] = random.nextInt(100) != 0;
+            inStock[i] = random.nextInt(50) != 0;
+            single[i] = new Order(paid[i], inStock[i]);
+        }
+        CompiledOrderChain chain = new OrderChainBuilder()
+                .then(new PaymentCheck())
+                .then(new StockCheck())
+                .build();
+        OrderBatch batch = new OrderBatch(batchSize);
+
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            int accepted = 0;
+            for (int i = 0; i < orders; i++) {
+                if (chain.handle(single[i])) {
+                    accepted++;
+                }
+            }
+            long singleNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            int batchAccepted = 0;
+            for (int from = 0; from < orders; from += batchSize) {
+                batch.clear();
+                for (int i = from, end = Math.min(orders, from + batchSize); i < end; i++) {
+                    batch.add(paid[i], inStock[i]);
+                }
+                if (chain.handleBatch(batch)) {
+                    batchAccepted += batch.liveCount;
+                }
+            }
+            long batchNanos = System.nanoTime() - start;
+
+            System.out.printf("per-order %,12.0f orders/s, batched %,12.0f orders/s (accepted %d / %d)%n",
+                    orders / (singleNanos / 1e9), orders / (batchNanos / 1e9), accepted, batchAccepted);
+        }
+    }
+}
+
+// Cost of leaving instrumentation on: the same chain with and without it.
+// Run with: java InstrumentationBenchmark [orders]
+class InstrumentationBenchmark {
+    public static void main(String[] args) {
+        int orders = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        Order order = new Order(true, true);
+        CompiledOrderChain plain = new OrderChainBuilder()
+                .then(new BatchChainBenchmark.PaymentCheck())
+                .then(new BatchChainBenchmark.StockCheck())
+                .then(new BatchChainBenchmark.PaymentCheck())
+                .then(new BatchChainBenchmark.StockCheck())
+                .then(new BatchChainBenchmark.PaymentCheck())
+                .build();
+        ChainMetrics metrics = new ChainMetrics();
+        CompiledOrderChain instrumented = new OrderChainBuilder()
+                .instrumentedWith(metrics)
+                .then(new BatchChainBenchmark.PaymentCheck())
+                .then(new BatchChainBenchmark.StockCheck())
+                .then(new BatchChainBenchmark.PaymentCheck())
+                .then(new BatchChainBenchmark.StockCheck())
+                .then(new BatchChainBenchmark.PaymentCheck())
+                .build();
+
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < orders; i++) {
+                plain.handle(order);
+            }
+            long plainNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < orders; i++) {
+                instrumented.handle(order);
+            }
+            long instrumentedNanos = System.nanoTime() - start;
+
+            System.out.printf("plain %5.1f ns/order, instrumented %5.1f ns/order, overhead %5.1f ns/handler%n",
+                    (double) plainNanos / orders, (double) instrumentedNanos / orders,
+                    (double) (instrumentedNanos - plainNanos) / orders / 5);
+        }
+        System.out.print(metrics.snapshot());
     }
 }
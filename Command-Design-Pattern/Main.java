@@ -1,3 +1,31 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
 // Author - Given Lepita
 
 /*
@@ -42,41 +70,97 @@ interface Command {
     void execute();
 }
 
+// A command that switches one receiver on or off. Only the last switch queued for a receiver matters,
+// which is what lets a command queue coalesce bursts.
+interface SwitchCommand extends Command {
+    Object receiver();
+
+    boolean switchesOn();
+}
+
+// Common view of the receivers, so their state can be journaled and rebuilt
+interface Device {
+    void turnOn();
+
+    void turnOff();
+
+    boolean isOn();
+
+    // Sets the state without acting on it, for rebuilding state from a journal
+    void restore(boolean on);
+}
+
 // Receiver: Light
-class Light {
-    void turnOn() {
+class Light implements Device {
+    private boolean on;
+
+    public void turnOn() {
+        on = true;
         System.out.println("Light is ON");
     }
 
-    void turnOff() {
+    public void turnOff() {
+        on = false;
         System.out.println("Light is OFF");
     }
+
+    public boolean isOn() {
+        return on;
+    }
+
+    public void restore(boolean on) {
+        this.on = on;
+    }
 }
 
 // Receiver: Fan
-class Fan {
-    void turnOn() {
+class Fan implements Device {
+    private boolean on;
+
+    public void turnOn() {
+        on = true;
         System.out.println("Fan is ON");
     }
 
-    void turnOff() {
+    public void turnOff() {
+        on = false;
         System.out.println("Fan is OFF");
     }
+
+    public boolean isOn() {
+        return on;
+    }
+
+    public void restore(boolean on) {
+        this.on = on;
+    }
 }
 
 // Receiver: Speaker
-class Speaker {
-    void turnOn() {
+class Speaker implements Device {
+    private boolean on;
+
+    public void turnOn() {
+        on = true;
         System.out.println("Speaker is ON");
     }
 
-    void turnOff() {
+    public void turnOff() {
+        on = false;
         System.out.println("Speaker is OFF");
     }
+
+    public boolean isOn() {
+        return on;
+    }
+
+    public void restore(boolean on) {
+        this.on = on;
+    }
 }
 
 // Concrete Command: LightOnCommand
-class LightOnCommand implements Command {
+class LightOnCommand implements SwitchCommand {
     private final Light light;
 
     LightOnCommand(Light light) {
@@ -86,10 +170,18 @@ class LightOnCommand implements Command {
     public void execute() {
         light.turnOn();
     }
+
+    public Object receiver() {
+        return light;
+    }
+
+    public boolean switchesOn() {
+        return true;
+    }
 }
 
 // Concrete Command: LightOffCommand
-class LightOffCommand implements Command {
+class LightOffCommand implements SwitchCommand {
     private final Light light;
 
     LightOffCommand(Light light) {
@@ -99,10 +191,18 @@ class LightOffCommand implements Command {
     public void execute() {
         light.turnOff();
     }
+
+    public Object receiver() {
+        return light;
+    }
+
+    public boolean switchesOn() {
+        return false;
+    }
 }
 
 // Concrete Command: FanOnCommand
-class FanOnCommand implements Command {
+class FanOnCommand implements SwitchCommand {
     private final Fan fan;
 
     FanOnCommand(Fan fan) {
@@ -112,10 +212,18 @@ class FanOnCommand implements Command {
     public void execute() {
         fan.turnOn();
     }
+
+    public Object receiver() {
+        return fan;
+    }
+
+    public boolean switchesOn() {
+        return true;
+    }
 }
 
 // Concrete Command: FanOffCommand
-class FanOffCommand implements Command {
+class FanOffCommand implements SwitchCommand {
     private final Fan fan;
 
     FanOffCommand(Fan fan) {
@@ -125,10 +233,18 @@ class FanOffCommand implements Command {
     public void execute() {
         fan.turnOff();
     }
+
+    public Object receiver() {
+        return fan;
+    }
+
+    public boolean switchesOn() {
+        return false;
+    }
 }
 
 // Concrete Command: SpeakerOnCommand
-class SpeakerOnCommand implements Command {
+class SpeakerOnCommand implements SwitchCommand {
     private final Speaker speaker;
 
     SpeakerOnCommand(Speaker speaker) {
@@ -138,10 +254,18 @@ class SpeakerOnCommand implements Command {
     public void execute() {
         speaker.turnOn();
     }
+
+    public Object receiver() {
+        return speaker;
+    }
+
+    public boolean switchesOn() {
+        return true;
+    }
 }
 
 // Concrete Command: SpeakerOffCommand
-class SpeakerOffCommand implements Command {
+class SpeakerOffCommand implements SwitchCommand {
     private final Speaker speaker;
 
     SpeakerOffCommand(Speaker speaker) {
@@ -151,21 +275,724 @@ class SpeakerOffCommand implements Command {
     public void execute() {
         speaker.turnOff();
     }
+
+    public Object receiver() {
+        return speaker;
+    }
+
+    public boolean switchesOn() {
+        return false;
+    }
 }
 
 // Invoker: RemoteControl
 class RemoteControl {
     private Command command;
+    private final CommandJournal journal;
+
+    RemoteControl() {
+        this(null);
+    }
+
+    // Every switch command is made durable in the journal before it runs
+    RemoteControl(CommandJournal journal) {
+        this.journal = journal;
+    }
 
     void setCommand(Command command) {
         this.command = command;
     }
 
     void pressButton() {
+        if (journal != null && command instanceof SwitchCommand) {
+            try {
+                journal.append((SwitchCommand) command);
+            } catch (IOException e) {
+                throw new IllegalStateException("Command could not be journaled", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
         command.execute();
     }
 }
 
+// Stable ids for devices, so journal records can name them
+class DeviceDirectory {
+    private final List<Device> devices = new ArrayList<>();
+    private final Map<Object, Integer> ids = new IdentityHashMap<>();
+
+    synchronized int register(Device device) {
+        Integer id = ids.get(device);
+        if (id == null) {
+            id = devices.size();
+            devices.add(device);
+            ids.put(device, id);
+        }
+        return id;
+    }
+
+    synchronized int idOf(Object device) {
+        Integer id = ids.get(device);
+        if (id == null) {
+            throw new IllegalArgumentException("Device is not registered: " + device);
+        }
+        return id;
+    }
+
+    synchronized Device device(int id) {
+        return devices.get(id);
+    }
+
+    synchronized int size() {
+        return devices.size();
+    }
+}
+
+// Write-ahead journal of switch commands. Each command is one varint, (device id << 1) | on. Concurrent appends
+// are group committed: a writer thread takes everything queued since the last commit, writes it as one
+// CRC-checked frame and fsyncs once for the whole group. append returns only once its command is durable.
+class CommandJournal implements AutoCloseable {
+    private static final int FRAME_HEADER = 8;
+    private static final int MAX_FRAME = 64 * 1024;
+
+    private final FileChannel channel;
+    private final DeviceDirectory devices;
+    private ByteBuffer filling = ByteBuffer.allocateDirect(MAX_FRAME);
+    private ByteBuffer writing = ByteBuffer.allocateDirect(MAX_FRAME);
+    private final ByteBuffer header = ByteBuffer.allocateDirect(FRAME_HEADER);
+    private final CRC32 crc = new CRC32();
+    private final Thread writer;
+    private long appended;
+    private long durable;
+    private long commits;
+    private boolean closed;
+    private IOException failure;
+
+    CommandJournal(Path file, DeviceDirectory devices) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.devices = devices;
+        this.writer = new Thread(this::writeLoop, "command-journal");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    // An interrupt while waiting for buffer space aborts the append before anything is written. Once the record
+    // is queued it will be journaled, so the wait for durability ignores interrupts and restores them afterwards;
+    // otherwise the caller could skip a command the journal already holds.
+    void append(SwitchCommand command) throws IOException, InterruptedException {
+        int record = devices.idOf(command.receiver()) << 1 | (command.switchesOn() ? 1 : 0);
+        long sequence;
+        synchronized (this) {
+            while (filling.remaining() < 5 && failure == null && !closed) {
+                wait();
+            }
+            if (closed) {
+                throw new IOException("Journal is closed");
+            }
+            while ((record & ~0x7F) != 0) {
+                filling.put((byte) ((record & 0x7F) | 0x80));
+                record >>>= 7;
+            }
+            filling.put((byte) record);
+            sequence = ++appended;
+            notifyAll();
+            boolean interrupted = false;
+            while (durable < sequence && failure == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (durable < sequence) {
+                throw failure;
+            }
+        }
+    }
+
+    // Number of fsyncs so far; appended / commits is the average group size
+    synchronized long commitCount() {
+        return commits;
+    }
+
+    synchronized long appendedCount() {
+        return appended;
+    }
+
+    // Flushes what is queued and stops the writer. An interrupt does not cut the flush short; it is restored afterwards.
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                writer.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        channel.close();
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            long target;
+            ByteBuffer frame;
+            synchronized (this) {
+                while (appended == durable && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (appended == durable) {
+                    return;
+                }
+                target = appended;
+                frame = filling;
+                filling = writing;
+                writing = frame;
+                notifyAll();
+            }
+
+            frame.flip();
+            crc.reset();
+            crc.update(frame.duplicate());
+            header.clear();
+            header.putInt(frame.remaining()).putInt((int) crc.getValue()).flip();
+            try {
+                while (header.hasRemaining() || frame.hasRemaining()) {
+                    channel.write(new ByteBuffer[] {header, frame});
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                synchronized (this) {
+                    failure = e;
+                    notifyAll();
+                }
+                return;
+            }
+            frame.clear();
+
+            synchronized (this) {
+                durable = target;
+                commits++;
+                notifyAll();
+            }
+        }
+    }
+
+    // Rebuilds device state from a journal with one sequential pass. Only the final state of each device is
+    // applied; a torn or corrupt frame at the end of the file marks the end of the journal. Returns the number
+    // of commands replayed.
+    static long replay(Path file, DeviceDirectory devices) throws IOException {
+        byte[] states = new byte[devices.size()];
+        long replayed = 0;
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+            CRC32 check = new CRC32();
+            buffer.limit(0);
+            boolean endOfFile = false;
+            while (true) {
+                if (buffer.remaining() < FRAME_HEADER + MAX_FRAME && !endOfFile) {
+                    buffer.compact();
+                    while (buffer.hasRemaining() && !endOfFile) {
+                        endOfFile = in.read(buffer) < 0;
+                    }
+                    buffer.flip();
+                }
+                if (buffer.remaining() < FRAME_HEADER) {
+                    break;
+                }
+                int length = buffer.getInt();
+                int expected = buffer.getInt();
+                if (length < 0 || length > MAX_FRAME || length > buffer.remaining()) {
+                    break;
+                }
+                ByteBuffer frame = buffer.slice();
+                frame.limit(length);
+                check.reset();
+                check.update(frame.duplicate());
+                if ((int) check.getValue() != expected) {
+                    break;
+                }
+                while (frame.hasRemaining()) {
+                    int record = 0;
+                    for (int shift = 0; ; shift += 7) {
+                        byte b = frame.get();
+                        record |= (b & 0x7F) << shift;
+                        if (b >= 0) {
+                            break;
+                        }
+                    }
+                    if ((record >>> 1) >= states.length) {
+                        throw new IOException("Journal names an unknown device: " + (record >>> 1));
+                    }
+                    states[record >>> 1] = (byte) (2 | (record & 1));
+                    replayed++;
+                }
+                buffer.position(buffer.position() + length);
+            }
+        }
+        for (int id = 0; id < states.length; id++) {
+            if (states[id] != 0) {
+                devices.device(id).restore((states[id] & 1) != 0);
+            }
+        }
+        return replayed;
+    }
+}
+
+// Invoker that queues commands and runs them in batches, in submission order. A switch command replaces the
+// switch still waiting for the same receiver and takes its place at the back of the queue, so a burst such as
+// ON, OFF, ON for one light runs only the final ON. Other commands are never coalesced. Batches run outside the
+// queue's lock, so submitters are not held up by a running batch, but one at a time and in the order they were
+// taken. A command that throws is counted and does not stop the rest of its batch.
+class CoalescingCommandQueue {
+    private final int batchSize;
+    private final ReentrantLock runLock = new ReentrantLock();
+    private List<Command> pending = new ArrayList<>();
+    private Map<Object, Integer> pendingSwitches = new IdentityHashMap<>();
+    private int pendingCount;
+    private long submitted;
+    private long executed;
+    private long coalesced;
+    private final AtomicLong failures = new AtomicLong();
+
+    CoalescingCommandQueue(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    // Queues a command and runs the batch once it is full
+    void submit(Command command) {
+        boolean full;
+        synchronized (this) {
+            submitted++;
+            if (command instanceof SwitchCommand) {
+                Object receiver = ((SwitchCommand) command).receiver();
+                Integer previous = pendingSwitches.put(receiver, pending.size());
+                if (previous != null) {
+                    pending.set(previous, null);
+                    pendingCount--;
+                    coalesced++;
+                }
+            }
+            pending.add(command);
+            pendingCount++;
+            full = pendingCount >= batchSize;
+        }
+        if (full) {
+            flush();
+        }
+    }
+
+    // Runs everything queued so far
+    void flush() {
+        runLock.lock();
+        try {
+            List<Command> batch;
+            synchronized (this) {
+                batch = pending;
+                executed += pendingCount;
+                pending = new ArrayList<>();
+                pendingSwitches = new IdentityHashMap<>();
+                pendingCount = 0;
+            }
+            for (Command command : batch) {
+                if (command != null) {
+                    try {
+                        command.execute();
+                    } catch (RuntimeException e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            }
+        } finally {
+            runLock.unlock();
+        }
+    }
+
+    synchronized long submittedCount() {
+        return submitted;
+    }
+
+    synchronized long executedCount() {
+        return executed;
+    }
+
+    // Commands dropped because a later switch for the same receiver replaced them
+    synchronized long coalescedCount() {
+        return coalesced;
+    }
+
+    long failureCount() {
+        return failures.get();
+    }
+}
+
+// Scheduler for deferred commands ("turn the fan off in 30 minutes") backed by a hierarchical timing wheel.
+// Scheduling and cancelling are O(1): each timer is a node in a doubly linked slot list, stored in primitive
+// arrays so millions of pending commands cost a few dozen bytes each. Timers far in the future sit in coarse
+// upper wheels and cascade down as their time approaches; expired commands run on the worker executor. A
+// command the executor rejects (for example after it has been shut down) is dropped and counted, and so is one
+// that throws while running on a direct executor, so the wheel keeps turning and the other timers in its slot
+// still fire.
+class TimingWheelScheduler implements AutoCloseable {
+    private static final int SLOT_BITS = 8;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+    private static final int NONE = -1;
+
+    private final long tickNanos;
+    private final Executor workers;
+    private final int[] slotHeads = new int[LEVELS * SLOTS];
+
+    // Timer nodes, indexed by node id
+    private long[] deadlines;
+    private int[] next;
+    private int[] previous;
+    private int[] slots;
+    private int[] generations;
+    private Command[] commands;
+    private int freeList = NONE;
+    private int used;
+
+    private long currentTick;
+    private int pending;
+    private long rejected;
+    private long failed;
+    private final AtomicBoolean started = new AtomicBoolean();
+    private volatile boolean running;
+    private Thread ticker;
+
+    TimingWheelScheduler(long tickDuration, TimeUnit unit, Executor workers, int initialCapacity) {
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.workers = workers;
+        Arrays.fill(slotHeads, NONE);
+        deadlines = new long[initialCapacity];
+        next = new int[initialCapacity];
+        previous = new int[initialCapacity];
+        slots = new int[initialCapacity];
+        generations = new int[initialCapacity];
+        commands = new Command[initialCapacity];
+    }
+
+    // Schedules the command and returns a handle for cancel. Delays round up to whole ticks.
+    synchronized long schedule(Command command, long delay, TimeUnit unit) {
+        Objects.requireNonNull(command, "command");
+        long ticks = Math.max(1, (unit.toNanos(delay) + tickNanos - 1) / tickNanos);
+        if (ticks >= 1L << (SLOT_BITS * LEVELS)) {
+            throw new IllegalArgumentException("Delay is beyond the wheel's range: " + delay + " " + unit);
+        }
+        int node = allocate();
+        deadlines[node] = currentTick + ticks;
+        commands[node] = command;
+        place(node);
+        pending++;
+        return ((long) generations[node] << 32) | node;
+    }
+
+    // Returns false if the command has already run or been cancelled
+    synchronized boolean cancel(long handle) {
+        int node = (int) handle;
+        if (node < 0 || node >= used || generations[node] != (int) (handle >>> 32) || commands[node] == null) {
+            return false;
+        }
+        unlink(node);
+        release(node);
+        pending--;
+        return true;
+    }
+
+    synchronized int pendingCount() {
+        return pending;
+    }
+
+    // Expired commands the worker executor refused to run
+    synchronized long rejectedCount() {
+        return rejected;
+    }
+
+    // Expired commands that threw while the worker executor ran them on the calling thread
+    synchronized long failedCount() {
+        return failed;
+    }
+
+    // Starts a thread that advances the wheel in real time. A wheel can only be started once.
+    synchronized void start() {
+        if (!started.compareAndSet(false, true)) {
+            throw new IllegalStateException("Timing wheel is already started");
+        }
+        running = true;
+        ticker = new Thread(() -> {
+            long startNanos = System.nanoTime();
+            while (running) {
+                long due = (System.nanoTime() - startNanos) / tickNanos;
+                synchronized (this) {
+                    while (currentTick < due) {
+                        advance();
+                    }
+                }
+                LockSupport.parkNanos(tickNanos);
+            }
+        }, "timing-wheel");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    // Stops the ticker and waits for it. An interrupt does not cut the wait short; it is restored afterwards.
+    @Override
+    public void close() {
+        running = false;
+        Thread thread;
+        synchronized (this) {
+            thread = ticker;
+        }
+        if (thread == null) {
+            return;
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Moves time forward one tick: cascades upper-wheel slots that just came due, then runs the level-0 slot
+    synchronized void advance() {
+        long tick = ++currentTick;
+        for (int level = LEVELS - 1; level > 0; level--) {
+            if ((tick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                int slot = level * SLOTS + (int) ((tick >>> (SLOT_BITS * level)) & SLOT_MASK);
+                int node = slotHeads[slot];
+                slotHeads[slot] = NONE;
+                while (node != NONE) {
+                    int following = next[node];
+                    place(node);
+                    node = following;
+                }
+            }
+        }
+
+        int slot = (int) (tick & SLOT_MASK);
+        int node = slotHeads[slot];
+        slotHeads[slot] = NONE;
+        while (node != NONE) {
+            int following = next[node];
+            Command command = commands[node];
+            release(node);
+            pending--;
+            try {
+                workers.execute(command::execute);
+            } catch (RejectedExecutionException e) {
+                rejected++;
+            } catch (RuntimeException e) {
+                failed++;
+            }
+            node = following;
+        }
+    }
+
+    // Puts a node in the lowest wheel whose range covers its deadline
+    private void place(int node) {
+        long deadline = deadlines[node];
+        int level = 0;
+        while (level < LEVELS - 1 && (deadline >>> (SLOT_BITS * (level + 1))) != (currentTick >>> (SLOT_BITS * (level + 1)))) {
+            level++;
+        }
+        int slot = level * SLOTS + (int) ((deadline >>> (SLOT_BITS * level)) & SLOT_MASK);
+        slots[node] = slot;
+        previous[node] = NONE;
+        next[node] = slotHeads[slot];
+        if (slotHeads[slot] != NONE) {
+            previous[slotHeads[slot]] = node;
+        }
+        slotHeads[slot] = node;
+    }
+
+    private void unlink(int node) {
+        if (previous[node] != NONE) {
+            next[previous[node]] = next[node];
+        } else {
+            slotHeads[slots[node]] = next[node];
+        }
+        if (next[node] != NONE) {
+            previous[next[node]] = previous[node];
+        }
+    }
+
+    private int allocate() {
+        if (freeList != NONE) {
+            int node = freeList;
+            freeList = next[node];
+            return node;
+        }
+        if (used == commands.length) {
+            int capacity = Math.max(16, used * 2);
+            deadlines = Arrays.copyOf(deadlines, capacity);
+            next = Arrays.copyOf(next, capacity);
+            previous = Arrays.copyOf(previous, capacity);
+            slots = Arrays.copyOf(slots, capacity);
+            generations = Arrays.copyOf(generations, capacity);
+            commands = Arrays.copyOf(commands, capacity);
+        }
+        return used++;
+    }
+
+    // Bumping the generation makes any handle still pointing at this node stale
+    private void release(int node) {
+        commands[node] = null;
+        generations[node]++;
+        next[node] = freeList;
+        freeList = node;
+    }
+}
+
+// Runs commands from many threads in parallel while keeping strict order per receiver. Each receiver is
+// hashed to one of a fixed set of single-threaded lanes, so commands for the same device always run one at
+// a time, in submission order, while different devices proceed on different cores. Once close() has begun,
+// submits are rejected with IllegalStateException; a submit already blocked on a full lane finishes first, so
+// every accepted command runs before its lane stops.
+class OrderedCommandExecutor implements AutoCloseable {
+    private static final Command STOP = () -> { };
+
+    private final Lane[] lanes;
+    private final AtomicLong failures = new AtomicLong();
+    private final ReentrantReadWriteLock closeLock = new ReentrantReadWriteLock();
+    private boolean closed;
+
+    OrderedCommandExecutor(int laneCount, int queueCapacity) {
+        lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new Lane(i, queueCapacity);
+            lanes[i].start();
+        }
+    }
+
+    // Switch commands are ordered by their receiver; any other command only by itself
+    void submit(Command command) throws InterruptedException {
+        Object receiver = command instanceof SwitchCommand ? ((SwitchCommand) command).receiver() : command;
+        submit(receiver, command);
+    }
+
+    // Blocks while the receiver's lane is full
+    void submit(Object receiver, Command command) throws InterruptedException {
+        int hash = System.identityHashCode(receiver);
+        hash ^= hash >>> 16;
+        closeLock.readLock().lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("Executor is closed");
+            }
+            lanes[(hash & Integer.MAX_VALUE) % lanes.length].queue.put(command);
+        } finally {
+            closeLock.readLock().unlock();
+        }
+    }
+
+    long executedCount() {
+        long executed = 0;
+        for (Lane lane : lanes) {
+            executed += lane.executed;
+        }
+        return executed;
+    }
+
+    long failureCount() {
+        return failures.get();
+    }
+
+    // Runs everything already submitted, then stops the lanes. An interrupt does not cut this short; it is
+    // restored afterwards.
+    @Override
+    public void close() {
+        boolean interrupted = false;
+        closeLock.writeLock().lock();
+        try {
+            if (!closed) {
+                closed = true;
+                for (Lane lane : lanes) {
+                    while (true) {
+                        try {
+                            lane.queue.put(STOP);
+                            break;
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+                }
+            }
+        } finally {
+            closeLock.writeLock().unlock();
+        }
+        for (Lane lane : lanes) {
+            while (true) {
+                try {
+                    lane.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private final class Lane extends Thread {
+        private final BlockingQueue<Command> queue;
+        private volatile long executed;
+
+        Lane(int index, int queueCapacity) {
+            super("command-lane-" + index);
+            this.queue = new ArrayBlockingQueue<>(queueCapacity);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Command command = queue.take();
+                    if (command == STOP) {
+                        return;
+                    }
+                    try {
+                        command.execute();
+                    } catch (RuntimeException e) {
+                        failures.incrementAndGet();
+                    }
+                    executed++;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
+
 public class Main {
     public static void main(String[] args) {
         // Creating the devices (receivers)
@@ -202,5 +1029,316 @@ public class Main {
 
         remoteControl.setCommand(speakerOff);
         remoteControl.pressButton(); // Turns off the speaker system
+
+        // Queueing a burst of commands: only the last switch per device survives
+        System.out.println();
+        CoalescingCommandQueue queue = new CoalescingCommandQueue(64);
+        queue.submit(livingRoomLightOn);
+        queue.submit(livingRoomLightOff);
+        queue.submit(bedroomFanOn);
+        queue.submit(livingRoomLightOn);
+        queue.submit(speakerOn);
+        queue.submit(speakerOff);
+        queue.flush();
+        System.out.println("Submitted: " + queue.submittedCount() + ", executed: " + queue.executedCount()
+                + ", coalesced: " + queue.coalescedCount());
+
+        // Journaling commands so device state survives a restart
+        System.out.println();
+        try {
+            Path journalFile = Files.createTempFile("commands", ".journal");
+            DeviceDirectory directory = new DeviceDirectory();
+            directory.register(livingRoomLight);
+            directory.register(bedroomFan);
+            directory.register(soundSystem);
+            try (CommandJournal journal = new CommandJournal(journalFile, directory)) {
+                RemoteControl journaledRemote = new RemoteControl(journal);
+                journaledRemote.setCommand(livingRoomLightOn);
+                journaledRemote.pressButton();
+                journaledRemote.setCommand(speakerOn);
+                journaledRemote.pressButton();
+            }
+
+            // After a "restart", fresh devices get their state back from the journal
+            DeviceDirectory restored = new DeviceDirectory();
+            Light restoredLight = new Light();
+            Fan restoredFan = new Fan();
+            Speaker restoredSpeaker = new Speaker();
+            restored.register(restoredLight);
+            restored.register(restoredFan);
+            restored.register(restoredSpeaker);
+            long replayed = CommandJournal.replay(journalFile, restored);
+            System.out.println("Replayed " + replayed + " commands: light on=" + restoredLight.isOn()
+                    + ", fan on=" + restoredFan.isOn() + ", speaker on=" + restoredSpeaker.isOn());
+            Files.delete(journalFile);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        // Commands for different devices run in parallel, commands for one device stay in order
+        System.out.println();
+        try (OrderedCommandExecutor executor = new OrderedCommandExecutor(2, 64)) {
+            executor.submit(livingRoomLightOn);
+            executor.submit(bedroomFanOn);
+            executor.submit(livingRoomLightOff);
+            executor.submit(bedroomFanOff);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Deferring commands on the timing wheel: the fan goes off shortly, the light order is cancelled
+        System.out.println();
+        ExecutorService workers = Executors.newFixedThreadPool(2);
+        try (TimingWheelScheduler scheduler = new TimingWheelScheduler(10, TimeUnit.MILLISECONDS, workers, 1024)) {
+            scheduler.start();
+            scheduler.schedule(bedroomFanOff, 50, TimeUnit.MILLISECONDS);
+            long lightOff = scheduler.schedule(livingRoomLightOff, 30, TimeUnit.MINUTES);
+            System.out.println("Cancelled the light timer: " + scheduler.cancel(lightOff));
+            Thread.sleep(200);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        workers.shutdown();
+    }
+}
+
+// Schedule, cancel and expiry throughput of the timing wheel with millions of pending commands.
+// Run with: java TimingWheelBenchmark [pending]   (10M pending commands need roughly -Xmx1g)
+class TimingWheelBenchmark {
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        long[] fired = new long[1];
+        Command noop = () -> fired[0]++;
+        TimingWheelScheduler scheduler = new TimingWheelScheduler(10, TimeUnit.MILLISECONDS, Runnable::run, count);
+        Random random = new Random(3);
+        long[] handles = new long[count];
+
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            handles[i] = scheduler.schedule(noop, 1 + random.nextInt(30 * 60 * 1000), TimeUnit.MILLISECONDS);
+        }
+        report("schedule", count, start);
+
+        // Churn: cancel a random pending timer and schedule a new one in its place
+        start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            int victim = random.nextInt(count);
+            scheduler.cancel(handles[victim]);
+            handles[victim] = scheduler.schedule(noop, 1 + random.nextInt(30 * 60 * 1000), TimeUnit.MILLISECONDS);
+        }
+        report("cancel + reschedule", count, start);
+        System.out.println("pending: " + scheduler.pendingCount());
+
+        // Expire the first five minutes (30,000 ticks) of timers
+        start = System.nanoTime();
+        for (int tick = 0; tick < 30_000; tick++) {
+            scheduler.advance();
+        }
+        report("expire", fired[0], start);
+
+        start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            scheduler.cancel(handles[i]);
+        }
+        report("cancel", count, start);
+        System.out.println("pending: " + scheduler.pendingCount());
+    }
+
+    private static void report(String name, long operations, long start) {
+        long nanos = System.nanoTime() - start;
+        System.out.printf("%-20s %,12d ops, %6.1f ns/op%n", name, operations, (double) nanos / Math.max(1, operations));
+    }
+}
+
+// Commit latency of the journal as more threads append at once and groups grow, plus replay speed.
+// Run with: java CommandJournalBenchmark [commandsPerThread]
+class CommandJournalBenchmark {
+    // A device that keeps quiet, so the benchmark measures the journal
+    static final class SilentDevice implements Device {
+        private boolean on;
+
+        public void turnOn() {
+            on = true;
+        }
+
+        public void turnOff() {
+            on = false;
+        }
+
+        public boolean isOn() {
+            return on;
+        }
+
+        public void restore(boolean on) {
+            this.on = on;
+        }
+    }
+
+    // Switch command for a silent device
+    static final class SilentSwitch implements SwitchCommand {
+        private final Device device;
+        private final boolean on;
+
+        SilentSwitch(Device device, boolean on) {
+            this.device = device;
+            this.on = on;
+        }
+
+        public void execute() {
+            if (on) {
+                device.turnOn();
+            } else {
+                device.turnOff();
+            }
+        }
+
+        public Object receiver() {
+            return device;
+        }
+
+        public boolean switchesOn() {
+            return on;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int perThread = args.length > 0 ? Integer.parseInt(args[0]) : 2_000;
+        DeviceDirectory directory = new DeviceDirectory();
+        SilentSwitch[] switches = new SilentSwitch[1_000];
+        for (int i = 0; i < switches.length; i++) {
+            SilentDevice device = new SilentDevice();
+            directory.register(device);
+            switches[i] = new SilentSwitch(device, (i & 1) == 0);
+        }
+
+        Path file = Files.createTempFile("benchmark", ".journal");
+        for (int threads : new int[] {1, 4, 16, 64}) {
+            try (CommandJournal journal = new CommandJournal(file, directory)) {
+                long commitsBefore = journal.commitCount();
+                CountDownLatch done = new CountDownLatch(threads);
+                long start = System.nanoTime();
+                for (int t = 0; t < threads; t++) {
+                    int offset = t;
+                    new Thread(() -> {
+                        try {
+                            for (int i = 0; i < perThread; i++) {
+                                journal.append(switches[(offset * perThread + i) % switches.length]);
+                            }
+                        } catch (IOException | InterruptedException e) {
+                            throw new IllegalStateException(e);
+                        } finally {
+                            done.countDown();
+                        }
+                    }).start();
+                }
+                done.await();
+                long nanos = System.nanoTime() - start;
+                long appends = (long) threads * perThread;
+                long commits = journal.commitCount() - commitsBefore;
+                System.out.printf("%2d threads: %,9.0f commands/s, avg group %6.1f, avg commit latency %7.1f us%n",
+                        threads, appends / (nanos / 1e9), (double) appends / commits,
+                        nanos / 1e3 * threads / appends);
+            }
+        }
+
+        long start = System.nanoTime();
+        long replayed = CommandJournal.replay(file, directory);
+        long nanos = System.nanoTime() - start;
+        System.out.printf("replay: %,d commands, %,d bytes, %,.0f MB/s%n",
+                replayed, Files.size(file), Files.size(file) / (nanos / 1e9) / (1 << 20));
+        Files.delete(file);
+    }
+}
+
+// Stress check for OrderedCommandExecutor: many producers, each owning a set of counters, submit increments
+// tagged with the expected next value. Any command that runs out of order for its receiver is reported.
+// Run with: java OrderedExecutorStressTest [producers] [commandsPerProducer]
+class OrderedExecutorStressTest {
+    // Receiver whose commands must arrive in sequence
+    static final class Counter {
+        long value;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int producers = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int perProducer = args.length > 1 ? Integer.parseInt(args[1]) : 200_000;
+        int countersPerProducer = 64;
+        AtomicLong violations = new AtomicLong();
+        Counter[][] counters = new Counter[producers][countersPerProducer];
+
+        OrderedCommandExecutor executor = new OrderedCommandExecutor(Runtime.getRuntime().availableProcessors() * 2, 1_024);
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            Counter[] owned = counters[p];
+            for (int c = 0; c < countersPerProducer; c++) {
+                owned[c] = new Counter();
+            }
+            threads[p] = new Thread(() -> {
+                long[] expected = new long[countersPerProducer];
+                Random random = new Random();
+                try {
+                    for (int i = 0; i < perProducer; i++) {
+                        int c = random.nextInt(countersPerProducer);
+                        Counter counter = owned[c];
+                        long sequence = expected[c]++;
+                        executor.submit(counter, () -> {
+                            if (counter.value != sequence) {
+                                violations.incrementAndGet();
+                            }
+                            counter.value = sequence + 1;
+                        });
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            threads[p].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        executor.close();
+
+        long total = 0;
+        for (Counter[] owned : counters) {
+            for (Counter counter : owned) {
+                total += counter.value;
+            }
+        }
+        System.out.println("executed " + executor.executedCount() + ", counted " + total
+                + ", ordering violations " + violations.get());
+        if (violations.get() != 0 || total != (long) producers * perProducer) {
+            throw new AssertionError("Per-receiver ordering was broken");
+        }
+    }
+}
+
+// Throughput of OrderedCommandExecutor as lanes are added. Each command does a little work on its receiver.
+// Run with: java OrderedExecutorBenchmark [commands] [receivers]
+class OrderedExecutorBenchmark {
+    public static void main(String[] args) throws InterruptedException {
+        int commands = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        int receivers = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        OrderedExecutorStressTest.Counter[] devices = new OrderedExecutorStressTest.Counter[receivers];
+        for (int i = 0; i < receivers; i++) {
+            devices[i] = new OrderedExecutorStressTest.Counter();
+        }
+        int maxLanes = Runtime.getRuntime().availableProcessors() * 2;
+        for (int lanes = 1; lanes <= maxLanes; lanes *= 2) {
+            OrderedCommandExecutor executor = new OrderedCommandExecutor(lanes, 4_096);
+            long start = System.nanoTime();
+            for (int i = 0; i < commands; i++) {
+                OrderedExecutorStressTest.Counter device = devices[i % receivers];
+                executor.submit(device, () -> {
+                    long value = device.value;
+                    for (int k = 0; k < 100; k++) {
+                        value = value * 31 + k;
+                    }
+                    device.value = value;
+                });
+            }
+            executor.close();
+            System.out.printf("%2d lanes: %,12.0f commands/s%n", lanes, commands / ((System.nanoTime() - start) / 1e9));
+        }
     }
 }
@@ -1,5 +1,18 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 // Author - Given Lepita
 /*
@@ -13,51 +26,1081 @@ import java.util.List;
  * It lets clients treat individual objects and compositions of objects uniformly.
 */
 
+// Axis-aligned bounding box of a UI element, in pixels
+final class Bounds {
+    static final Bounds EMPTY = new Bounds(0, 0, 0, 0);
+
+    final int x;
+    final int y;
+    final int width;
+    final int height;
+
+    Bounds(int x, int y, int width, int height) {
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+    }
+
+    boolean contains(int px, int py) {
+        return px >= x && py >= y && px < x + width && py < y + height;
+    }
+
+    boolean contains(Bounds other) {
+        return other.x >= x && other.y >= y && other.x + other.width <= x + width && other.y + other.height <= y + height;
+    }
+
+    boolean intersects(Bounds other) {
+        return other.x < x + width && x < other.x + other.width && other.y < y + height && y < other.y + other.height;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + x + ", " + y + ", " + width + " x " + height + "]";
+    }
+}
+
 // Component interface representing the UI element
 interface UIElement {
+    // Draws whatever is dirty
     void draw();
+
+    // Draws the element and everything below it, dirty or not
+    void redraw();
+
+    String getName();
+
+    Bounds getBounds();
+
+    // Dirty tracking: an element is dirty when it, or something below it, needs drawing
+    boolean isDirty();
+
+    void setParent(UIParent parent);
+}
+
+// An element that holds other elements: a UIContainer, or a VirtualizedList holding its visible rows
+interface UIParent extends UIElement {
+    List<UIElement> getElements();
+
+    // Called by a child that needs drawing
+    void childChanged(UIElement element);
+
+    SpatialIndex getSpatialIndex();
+
+    void setSpatialIndex(SpatialIndex spatialIndex);
 }
 
 // Leaf class representing individual UI elements like buttons or text boxes
 class LeafElement implements UIElement {
     private String name;
+    private Bounds bounds;
+    private UIParent parent;
+    private boolean dirty = true;
 
     public LeafElement(String name) {
+        this(name, Bounds.EMPTY);
+    }
+
+    public LeafElement(String name, Bounds bounds) {
+        this.name = name;
+        this.bounds = bounds;
+    }
+
+    @Override
+    public Bounds getBounds() {
+        return bounds;
+    }
+
+    // Moving or resizing a leaf redraws it and keeps the tree's spatial index, if any, up to date
+    public void setBounds(Bounds bounds) {
+        this.bounds = bounds;
+        if (parent != null && parent.getSpatialIndex() != null) {
+            parent.getSpatialIndex().update(this);
+        }
+        markDirty();
+    }
+
+    public void setName(String name) {
         this.name = name;
+        markDirty();
+    }
+
+    // Flags the leaf for redrawing and tells its ancestors, stopping at the first one already dirty
+    public void markDirty() {
+        if (!dirty) {
+            dirty = true;
+            if (parent != null) {
+                parent.childChanged(this);
+            }
+        }
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    @Override
+    public void setParent(UIParent parent) {
+        this.parent = parent;
     }
 
     @Override
     public void draw() {
         System.out.println("Drawing " + name);
+        dirty = false;
+    }
+
+    @Override
+    public void redraw() {
+        draw();
     }
 }
 
-// Composite class representing a container that can hold multiple UI elements
-class UIContainer implements UIElement {
+// Composite class representing a container that can hold multiple UI elements.
+// A container remembers whether it needs drawing itself and whether any child does, so draw() skips clean
+// subtrees and its cost follows the changed part of the tree rather than its size. Drawing a container paints
+// over its area, so a container that is dirty itself redraws its whole subtree; otherwise only the dirty
+// children are drawn, in child order.
+class UIContainer implements UIParent {
     private String name;
+    private Bounds bounds = Bounds.EMPTY;
     private List<UIElement> elements = new ArrayList<>();
+    private UIParent parent;
+    private boolean selfDirty = true;
+    private boolean childrenDirty;
+    private SpatialIndex spatialIndex;
 
     public UIContainer(String name) {
         this.name = name;
     }
 
+    // The container is redrawn, since the new element changes what it shows
     public void addElement(UIElement element) {
         elements.add(element);
+        element.setParent(this);
+        if (spatialIndex != null) {
+            spatialIndex.indexSubtree(element, true);
+        }
+        markDirty();
     }
 
+    // The container is redrawn, since the removed element leaves a gap in it
     public void removeElement(UIElement element) {
-        elements.remove(element);
+        if (elements.remove(element)) {
+            element.setParent(null);
+            if (spatialIndex != null) {
+                spatialIndex.indexSubtree(element, false);
+            }
+            markDirty();
+        }
+    }
+
+    @Override
+    public Bounds getBounds() {
+        return bounds;
+    }
+
+    public void setBounds(Bounds bounds) {
+        this.bounds = bounds;
+        markDirty();
+    }
+
+    @Override
+    public SpatialIndex getSpatialIndex() {
+        return spatialIndex;
+    }
+
+    @Override
+    public void setSpatialIndex(SpatialIndex spatialIndex) {
+        this.spatialIndex = spatialIndex;
+    }
+
+    public void markDirty() {
+        boolean wasDirty = isDirty();
+        selfDirty = true;
+        if (!wasDirty && parent != null) {
+            parent.childChanged(this);
+        }
+    }
+
+    @Override
+    public void childChanged(UIElement element) {
+        boolean wasDirty = isDirty();
+        childrenDirty = true;
+        if (!wasDirty && parent != null) {
+            parent.childChanged(this);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public List<UIElement> getElements() {
+        return Collections.unmodifiableList(elements);
+    }
+
+    @Override
+    public boolean isDirty() {
+        return selfDirty || childrenDirty;
+    }
+
+    @Override
+    public void setParent(UIParent parent) {
+        this.parent = parent;
     }
 
     @Override
     public void draw() {
+        if (selfDirty) {
+            redraw();
+        } else if (childrenDirty) {
+            childrenDirty = false;
+            for (UIElement element : elements) {
+                if (element.isDirty()) {
+                    element.draw();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void redraw() {
         System.out.println("Drawing " + name);
+        selfDirty = false;
+        childrenDirty = false;
         for (UIElement element : elements) {
-            element.draw();
+            element.redraw();
         }
     }
 }
 
+// Parallel traversal of UIElement trees on a fork-join pool. Each task walks its part of the tree with an
+// explicit stack, so deep chains cannot overflow the call stack. When a task's stack grows past the split
+// threshold and the pool has idle workers, the bottom half of the stack is forked off as a new task, which
+// balances wide, deep and skewed trees alike. Elements are visited in pre-order (draw order) within a task.
+class UITreeTraversal {
+    private final ForkJoinPool pool;
+    private final int splitThreshold;
+
+    UITreeTraversal(ForkJoinPool pool, int splitThreshold) {
+        this.pool = pool;
+        this.splitThreshold = splitThreshold;
+    }
+
+    // Visits every element in parallel, in no particular order
+    public void forEach(UIElement root, Consumer<UIElement> visitor) {
+        pool.invoke(new Walk<Void>(new UIElement[] {root}, 1, element -> {
+            visitor.accept(element);
+            return null;
+        }, false));
+    }
+
+    // Maps every element in parallel and returns the results in draw (pre-)order
+    public <R> List<R> mapOrdered(UIElement root, Function<UIElement, R> mapper) {
+        Walk<R> walk = new Walk<>(new UIElement[] {root}, 1, mapper, true);
+        pool.invoke(walk);
+        List<R> results = new ArrayList<>();
+        walk.collect(results);
+        return results;
+    }
+
+    private final class Walk<R> extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private UIElement[] stack;
+        private int size;
+        private final Function<UIElement, R> mapper;
+        private final boolean ordered;
+        private final List<R> results = new ArrayList<>();
+        private final List<Walk<R>> forks = new ArrayList<>();
+
+        Walk(UIElement[] stack, int size, Function<UIElement, R> mapper, boolean ordered) {
+            this.stack = stack;
+            this.size = size;
+            this.mapper = mapper;
+            this.ordered = ordered;
+        }
+
+        @Override
+        protected void compute() {
+            while (size > 0) {
+                UIElement element = stack[--size];
+                stack[size] = null;
+                R result = mapper.apply(element);
+                if (ordered) {
+                    results.add(result);
+                }
+                if (element instanceof UIParent) {
+                    push(((UIParent) element).getElements());
+                }
+                if (size > splitThreshold && getSurplusQueuedTaskCount() < 2) {
+                    split();
+                }
+            }
+            for (Walk<R> fork : forks) {
+                fork.join();
+            }
+        }
+
+        // Children are pushed last-first, so the first child is visited next
+        private void push(List<UIElement> children) {
+            if (size + children.size() > stack.length) {
+                stack = Arrays.copyOf(stack, Math.max(stack.length * 2, size + children.size()));
+            }
+            for (int i = children.size() - 1; i >= 0; i--) {
+                stack[size++] = children.get(i);
+            }
+        }
+
+        // The bottom of the stack comes after everything above it in pre-order, so a forked task's
+        // results follow this task's own, and later forks come before earlier ones
+        private void split() {
+            int half = size / 2;
+            UIElement[] forked = Arrays.copyOf(stack, Math.max(half, 16));
+            System.arraycopy(stack, half, stack, 0, size - half);
+            Arrays.fill(stack, size - half, size, null);
+            size -= half;
+            Walk<R> fork = new Walk<>(forked, half, mapper, ordered);
+            forks.add(fork);
+            fork.fork();
+        }
+
+        void collect(List<R> target) {
+            target.addAll(results);
+            for (int i = forks.size() - 1; i >= 0; i--) {
+                forks.get(i).collect(target);
+            }
+        }
+    }
+}
+
+// Array-backed store for very large UI trees. Nodes are ids into primitive parent / first-child / last-child /
+// next-sibling / previous-sibling arrays instead of objects holding lists, so inserting or unlinking a node is
+// O(1) and a traversal walks a few dense arrays. view(id) gives the usual UIElement on top of a node, which can
+// be placed in a UIContainer like any other element. Dirty tracking follows UIContainer: a new node needs
+// drawing, and adding or removing a child redraws its parent's whole subtree.
+class FlatUITree {
+    static final int NONE = -1;
+    static final int ROOT = 0;
+
+    // Bits of a node's flags byte
+    private static final byte CONTAINER = 1;
+    private static final byte IN_USE = 2;
+    private static final byte SELF_DIRTY = 4;
+    private static final byte CHILDREN_DIRTY = 8;
+    private static final byte DIRTY = SELF_DIRTY | CHILDREN_DIRTY;
+
+    private int[] parent;
+    private int[] firstChild;
+    private int[] lastChild;
+    private int[] nextSibling;
+    private int[] previousSibling;
+    private byte[] flags;
+    private String[] names;
+    private int used;
+    private int freeList = NONE;
+    private int live;
+
+    // Views currently placed in a UIContainer, by node id. Changes below such a node are passed on to the container.
+    private final Map<Integer, NodeView> attached = new HashMap<>();
+
+    FlatUITree(String rootName, int initialCapacity) {
+        int capacity = Math.max(initialCapacity, 1);
+        parent = new int[capacity];
+        firstChild = new int[capacity];
+        lastChild = new int[capacity];
+        nextSibling = new int[capacity];
+        previousSibling = new int[capacity];
+        flags = new byte[capacity];
+        names = new String[capacity];
+        allocate(rootName, true);
+    }
+
+    // Appends a new node as the last child of parentId and returns its id
+    int addElement(int parentId, String name, boolean isContainer) {
+        checkNode(parentId);
+        if ((flags[parentId] & CONTAINER) == 0) {
+            throw new IllegalArgumentException("Node " + parentId + " is not a container");
+        }
+        int id = allocate(name, isContainer);
+        parent[id] = parentId;
+        int last = lastChild[parentId];
+        previousSibling[id] = last;
+        if (last == NONE) {
+            firstChild[parentId] = id;
+        } else {
+            nextSibling[last] = id;
+        }
+        lastChild[parentId] = id;
+        markDirty(parentId, SELF_DIRTY);
+        return id;
+    }
+
+    // Unlinks the node in O(1); the ids of the node and its subtree are recycled
+    void removeElement(int id) {
+        checkNode(id);
+        if (id == ROOT) {
+            throw new IllegalArgumentException("The root cannot be removed");
+        }
+        int p = parent[id];
+        int previous = previousSibling[id];
+        int next = nextSibling[id];
+        if (previous == NONE) {
+            firstChild[p] = next;
+        } else {
+            nextSibling[previous] = next;
+        }
+        if (next == NONE) {
+            lastChild[p] = previous;
+        } else {
+            previousSibling[next] = previous;
+        }
+        nextSibling[id] = NONE;
+        parent[id] = NONE;
+
+        // Freed ids are chained through firstChild: the walk has already read it for every freed node,
+        // while it still climbs through their parent and nextSibling links
+        for (int node = id; node != NONE; ) {
+            int following = nextInPreOrder(node, id);
+            if (!attached.isEmpty()) {
+                NodeView view = attached.remove(node);
+                if (view != null) {
+                    view.removed = true;
+                }
+            }
+            names[node] = null;
+            flags[node] = 0;
+            firstChild[node] = freeList;
+            freeList = node;
+            live--;
+            node = following;
+        }
+        markDirty(p, SELF_DIRTY);
+    }
+
+    String getName(int id) {
+        return names[id];
+    }
+
+    boolean isContainer(int id) {
+        return (flags[id] & CONTAINER) != 0;
+    }
+
+    int firstChild(int id) {
+        return firstChild[id];
+    }
+
+    int nextSibling(int id) {
+        return nextSibling[id];
+    }
+
+    int size() {
+        return live;
+    }
+
+    // The node after id in pre-order, staying inside the subtree rooted at subtreeRoot; NONE when done.
+    // Needs no stack: it descends through first children and climbs back up through parents.
+    int nextInPreOrder(int id, int subtreeRoot) {
+        if (firstChild[id] != NONE) {
+            return firstChild[id];
+        }
+        return nextAfterSubtree(id, subtreeRoot);
+    }
+
+    // Like nextInPreOrder, but skips the children of id
+    private int nextAfterSubtree(int id, int subtreeRoot) {
+        for (int node = id; node != subtreeRoot; node = parent[node]) {
+            if (nextSibling[node] != NONE) {
+                return nextSibling[node];
+            }
+        }
+        return NONE;
+    }
+
+    // The view already placed in a container for this node, if there is one, so both stay in step
+    UIElement view(int id) {
+        checkNode(id);
+        NodeView view = attached.get(id);
+        return view != null ? view : new NodeView(id);
+    }
+
+    private void checkNode(int id) {
+        if (id < 0 || id >= used || (flags[id] & IN_USE) == 0) {
+            throw new IllegalArgumentException("No node with id " + id);
+        }
+    }
+
+    // Flags the node and tells its ancestors, stopping at the first one already dirty
+    private void markDirty(int node, byte flag) {
+        boolean wasDirty = (flags[node] & DIRTY) != 0;
+        flags[node] |= flag;
+        while (!wasDirty) {
+            if (!attached.isEmpty()) {
+                NodeView view = attached.get(node);
+                if (view != null) {
+                    view.parent.childChanged(view);
+                }
+            }
+            node = parent[node];
+            if (node == NONE) {
+                return;
+            }
+            wasDirty = (flags[node] & DIRTY) != 0;
+            flags[node] |= CHILDREN_DIRTY;
+        }
+    }
+
+    // Draws the dirty part of the subtree in pre-order without recursion, skipping clean subtrees
+    private void drawDirty(int id) {
+        int node = id;
+        while (node != NONE) {
+            if ((flags[node] & SELF_DIRTY) != 0) {
+                drawSubtree(node);
+                node = nextAfterSubtree(node, id);
+            } else if ((flags[node] & CHILDREN_DIRTY) != 0) {
+                flags[node] &= ~CHILDREN_DIRTY;
+                node = nextInPreOrder(node, id);
+            } else {
+                node = nextAfterSubtree(node, id);
+            }
+        }
+    }
+
+    private void drawSubtree(int id) {
+        for (int node = id; node != NONE; node = nextInPreOrder(node, id)) {
+            System.out.println("Drawing " + names[node]);
+            flags[node] &= ~DIRTY;
+        }
+    }
+
+    private int allocate(String name, boolean isContainer) {
+        int id;
+        if (freeList != NONE) {
+            id = freeList;
+            freeList = firstChild[id];
+        } else {
+            if (used == names.length) {
+                int capacity = used * 2;
+                parent = Arrays.copyOf(parent, capacity);
+                firstChild = Arrays.copyOf(firstChild, capacity);
+                lastChild = Arrays.copyOf(lastChild, capacity);
+                nextSibling = Arrays.copyOf(nextSibling, capacity);
+                previousSibling = Arrays.copyOf(previousSibling, capacity);
+                flags = Arrays.copyOf(flags, capacity);
+                names = Arrays.copyOf(names, capacity);
+            }
+            id = used++;
+        }
+        parent[id] = NONE;
+        firstChild[id] = NONE;
+        lastChild[id] = NONE;
+        nextSibling[id] = NONE;
+        previousSibling[id] = NONE;
+        flags[id] = (byte) (IN_USE | SELF_DIRTY | (isContainer ? CONTAINER : 0));
+        names[id] = name;
+        live++;
+        return id;
+    }
+
+    // UIElement view of one node. A view stays valid until its node is removed; after that it is empty.
+    private final class NodeView implements UIElement {
+        private final int id;
+        private UIParent parent;
+        private boolean removed;
+
+        NodeView(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public void draw() {
+            if (!removed) {
+                drawDirty(id);
+            }
+        }
+
+        @Override
+        public void redraw() {
+            if (!removed) {
+                drawSubtree(id);
+            }
+        }
+
+        @Override
+        public String getName() {
+            return removed ? null : names[id];
+        }
+
+        // The flat store keeps no geometry
+        @Override
+        public Bounds getBounds() {
+            return Bounds.EMPTY;
+        }
+
+        @Override
+        public boolean isDirty() {
+            return !removed && (flags[id] & DIRTY) != 0;
+        }
+
+        // A node is shown by at most one container at a time, through the view placed there
+        @Override
+        public void setParent(UIParent parent) {
+            if (parent != null && removed) {
+                throw new IllegalStateException("Node " + id + " has been removed from its tree");
+            }
+            this.parent = parent;
+            if (parent != null) {
+                attached.put(id, this);
+            } else {
+                attached.remove(id, this);
+            }
+        }
+    }
+}
+
+// Loose quadtree over the leaves of a composite, kept up to date by addElement, removeElement and
+// LeafElement.setBounds. A quadrant holds up to SPLIT_THRESHOLD leaves before it splits. Each child
+// accepts leaves inside its loose area, twice its size around the same center, so a small leaf that
+// straddles a center line still moves down to the child holding its center instead of piling up above.
+// Point and rectangle queries only descend through the loose areas they overlap, and quadrants whose
+// subtrees empty out are collapsed again when leaves are removed.
+class SpatialIndex {
+    private static final int MAX_DEPTH = 16;
+    private static final int SPLIT_THRESHOLD = 8;
+
+    private final Quadrant root;
+    private final Map<LeafElement, Quadrant> homes = new IdentityHashMap<>();
+
+    private static final class Quadrant {
+        final Bounds area;
+        final Bounds loose;
+        final Quadrant parent;
+        final int depth;
+        final List<LeafElement> leaves = new ArrayList<>(2);
+        Quadrant[] children;
+        // Leaves in this quadrant and everything below it
+        int count;
+
+        Quadrant(Bounds area, Bounds loose, Quadrant parent) {
+            this.area = area;
+            this.loose = loose;
+            this.parent = parent;
+            this.depth = parent == null ? 0 : parent.depth + 1;
+        }
+    }
+
+    SpatialIndex(Bounds world) {
+        this.root = new Quadrant(world, world, null);
+    }
+
+    // Indexes every leaf under the container and keeps the index current as the tree changes
+    static SpatialIndex attach(UIContainer container, Bounds world) {
+        SpatialIndex index = new SpatialIndex(world);
+        index.indexSubtree(container, true);
+        return index;
+    }
+
+    int size() {
+        return homes.size();
+    }
+
+    // Leaves whose bounds contain the point
+    List<LeafElement> queryPoint(int x, int y) {
+        List<LeafElement> hits = new ArrayList<>();
+        List<Quadrant> pending = new ArrayList<>();
+        pending.add(root);
+        while (!pending.isEmpty()) {
+            Quadrant quadrant = pending.remove(pending.size() - 1);
+            for (LeafElement leaf : quadrant.leaves) {
+                if (leaf.getBounds().contains(x, y)) {
+                    hits.add(leaf);
+                }
+            }
+            if (quadrant.children != null) {
+                for (Quadrant child : quadrant.children) {
+                    if (child.count > 0 && child.loose.contains(x, y)) {
+                        pending.add(child);
+                    }
+                }
+            }
+        }
+        return hits;
+    }
+
+    // Leaves whose bounds overlap the rectangle
+    List<LeafElement> queryRect(Bounds area) {
+        List<LeafElement> hits = new ArrayList<>();
+        List<Quadrant> pending = new ArrayList<>();
+        pending.add(root);
+        while (!pending.isEmpty()) {
+            Quadrant quadrant = pending.remove(pending.size() - 1);
+            for (LeafElement leaf : quadrant.leaves) {
+                if (leaf.getBounds().intersects(area)) {
+                    hits.add(leaf);
+                }
+            }
+            if (quadrant.children != null) {
+                for (Quadrant child : quadrant.children) {
+                    if (child.count > 0 && child.loose.intersects(area)) {
+                        pending.add(child);
+                    }
+                }
+            }
+        }
+        return hits;
+    }
+
+    void update(LeafElement leaf) {
+        if (remove(leaf)) {
+            insert(leaf);
+        }
+    }
+
+    // Adds or removes every leaf under the element, and links or unlinks its containers from this index
+    void indexSubtree(UIElement element, boolean add) {
+        List<UIElement> pending = new ArrayList<>();
+        pending.add(element);
+        while (!pending.isEmpty()) {
+            UIElement current = pending.remove(pending.size() - 1);
+            if (current instanceof UIParent) {
+                UIParent container = (UIParent) current;
+                container.setSpatialIndex(add ? this : null);
+                pending.addAll(container.getElements());
+            } else if (current instanceof LeafElement) {
+                if (add) {
+                    insert((LeafElement) current);
+                } else {
+                    remove((LeafElement) current);
+                }
+            }
+        }
+    }
+
+    private void insert(LeafElement leaf) {
+        Bounds bounds = leaf.getBounds();
+        Quadrant quadrant = root;
+        while (true) {
+            quadrant.count++;
+            if (quadrant.children == null) {
+                if (quadrant.leaves.size() < SPLIT_THRESHOLD || !canSplit(quadrant)) {
+                    break;
+                }
+                split(quadrant);
+            }
+            Quadrant child = childFor(quadrant, bounds);
+            if (child == null) {
+                break;
+            }
+            quadrant = child;
+        }
+        quadrant.leaves.add(leaf);
+        homes.put(leaf, quadrant);
+    }
+
+    private boolean remove(LeafElement leaf) {
+        Quadrant home = homes.remove(leaf);
+        if (home == null) {
+            return false;
+        }
+        List<LeafElement> leaves = home.leaves;
+        for (int i = 0; i < leaves.size(); i++) {
+            if (leaves.get(i) == leaf) {
+                leaves.set(i, leaves.get(leaves.size() - 1));
+                leaves.remove(leaves.size() - 1);
+                break;
+            }
+        }
+        for (Quadrant quadrant = home; quadrant != null; quadrant = quadrant.parent) {
+            quadrant.count--;
+            // Nothing is left below this quadrant, so its children go until it fills up again
+            if (quadrant.children != null && quadrant.count == quadrant.leaves.size()) {
+                quadrant.children = null;
+            }
+        }
+        return true;
+    }
+
+    private static boolean canSplit(Quadrant quadrant) {
+        return quadrant.depth < MAX_DEPTH && quadrant.area.width > 1 && quadrant.area.height > 1;
+    }
+
+    // The child whose area holds the center of the bounds, if its loose area holds all of them
+    private static Quadrant childFor(Quadrant quadrant, Bounds bounds) {
+        Bounds area = quadrant.area;
+        long centerX = bounds.x + (long) bounds.width / 2;
+        long centerY = bounds.y + (long) bounds.height / 2;
+        int index = (centerX >= area.x + area.width / 2 ? 1 : 0) + (centerY >= area.y + area.height / 2 ? 2 : 0);
+        Quadrant child = quadrant.children[index];
+        return child.loose.contains(bounds) ? child : null;
+    }
+
+    // Creates the four children and moves down the leaves that fit in one of them
+    private void split(Quadrant quadrant) {
+        Bounds area = quadrant.area;
+        int halfWidth = area.width / 2;
+        int halfHeight = area.height / 2;
+        quadrant.children = new Quadrant[] {
+            child(quadrant, new Bounds(area.x, area.y, halfWidth, halfHeight)),
+            child(quadrant, new Bounds(area.x + halfWidth, area.y, area.width - halfWidth, halfHeight)),
+            child(quadrant, new Bounds(area.x, area.y + halfHeight, halfWidth, area.height - halfHeight)),
+            child(quadrant, new Bounds(area.x + halfWidth, area.y + halfHeight, area.width - halfWidth, area.height - halfHeight))
+        };
+        List<LeafElement> leaves = quadrant.leaves;
+        int kept = 0;
+        for (int i = 0; i < leaves.size(); i++) {
+            LeafElement leaf = leaves.get(i);
+            Quadrant child = childFor(quadrant, leaf.getBounds());
+            if (child == null) {
+                leaves.set(kept++, leaf);
+            } else {
+                child.leaves.add(leaf);
+                child.count++;
+                homes.put(leaf, child);
+            }
+        }
+        leaves.subList(kept, leaves.size()).clear();
+    }
+
+    private static Quadrant child(Quadrant parent, Bounds area) {
+        Bounds loose = new Bounds(area.x - area.width / 2, area.y - area.height / 2, area.width * 2, area.height * 2);
+        return new Quadrant(area, loose, parent);
+    }
+}
+
+// Index-based data behind a VirtualizedList; rows are only asked for when they scroll into view
+interface RowSource {
+    int getRowCount();
+
+    String getRowName(int index);
+}
+
+// Element for very long lists. Instead of holding one LeafElement per row, it materializes only the rows
+// inside its viewport from a RowSource, and reuses the leaves of rows that scroll out for the rows that
+// scroll in. Memory and draw() cost follow the viewport size, not the number of rows. The rows come from
+// the source, so unlike a UIContainer it has no addElement or removeElement; its visible rows are its
+// elements, kept in row order.
+class VirtualizedList implements UIParent {
+    private final String name;
+    private final Bounds viewport;
+    private final RowSource source;
+    private final int rowHeight;
+    private final List<LeafElement> window = new ArrayList<>();
+    private final ArrayDeque<LeafElement> recycled = new ArrayDeque<>();
+    private final int poolCapacity;
+    private UIParent parent;
+    private boolean selfDirty = true;
+    private boolean childrenDirty;
+    private SpatialIndex spatialIndex;
+    private int firstRow;
+    private int windowFirstRow;
+    private boolean materialized;
+
+    public VirtualizedList(String name, RowSource source, Bounds viewport, int rowHeight) {
+        this.name = name;
+        this.source = source;
+        this.viewport = viewport;
+        this.rowHeight = rowHeight;
+        this.poolCapacity = Math.max(4, viewport.height / rowHeight / 4);
+    }
+
+    public void scrollTo(int row) {
+        int target = Math.max(0, Math.min(row, source.getRowCount() - visibleRowCount()));
+        if (target != firstRow) {
+            firstRow = target;
+            if (materialized) {
+                layoutWindow();
+            }
+        }
+    }
+
+    public int getFirstVisibleRow() {
+        return firstRow;
+    }
+
+    // Rebinds every visible row, for when the rows behind the source have changed
+    public void rowsChanged() {
+        firstRow = Math.max(0, Math.min(firstRow, source.getRowCount() - visibleRowCount()));
+        if (materialized) {
+            while (!window.isEmpty()) {
+                release(window.remove(window.size() - 1));
+            }
+            windowFirstRow = firstRow;
+            layoutWindow();
+        }
+    }
+
+    // Number of LeafElements currently alive, visible or pooled
+    public int getMaterializedCount() {
+        return window.size() + recycled.size();
+    }
+
+    // The visible rows, top to bottom
+    @Override
+    public List<UIElement> getElements() {
+        ensureMaterialized();
+        return Collections.unmodifiableList(window);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public Bounds getBounds() {
+        return viewport;
+    }
+
+    @Override
+    public SpatialIndex getSpatialIndex() {
+        return spatialIndex;
+    }
+
+    @Override
+    public void setSpatialIndex(SpatialIndex spatialIndex) {
+        this.spatialIndex = spatialIndex;
+    }
+
+    public void markDirty() {
+        boolean wasDirty = isDirty();
+        selfDirty = true;
+        if (!wasDirty && parent != null) {
+            parent.childChanged(this);
+        }
+    }
+
+    @Override
+    public void childChanged(UIElement element) {
+        boolean wasDirty = isDirty();
+        childrenDirty = true;
+        if (!wasDirty && parent != null) {
+            parent.childChanged(this);
+        }
+    }
+
+    @Override
+    public boolean isDirty() {
+        return selfDirty || childrenDirty;
+    }
+
+    @Override
+    public void setParent(UIParent parent) {
+        this.parent = parent;
+    }
+
+    @Override
+    public void draw() {
+        ensureMaterialized();
+        if (selfDirty) {
+            redraw();
+        } else if (childrenDirty) {
+            childrenDirty = false;
+            for (LeafElement row : window) {
+                if (row.isDirty()) {
+                    row.draw();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void redraw() {
+        ensureMaterialized();
+        System.out.println("Drawing " + name);
+        selfDirty = false;
+        childrenDirty = false;
+        for (LeafElement row : window) {
+            row.redraw();
+        }
+    }
+
+    private int visibleRowCount() {
+        return (viewport.height + rowHeight - 1) / rowHeight;
+    }
+
+    private void ensureMaterialized() {
+        if (!materialized) {
+            materialized = true;
+            windowFirstRow = firstRow;
+            layoutWindow();
+        }
+    }
+
+    // Drops the rows that left the viewport, moves the rows that stayed and binds the rows that entered.
+    // Rows entering above the window go to the front of the list, so it stays in row order.
+    private void layoutWindow() {
+        int lastRow = Math.min(source.getRowCount(), firstRow + visibleRowCount());
+        int windowLastRow = windowFirstRow + window.size();
+        if (firstRow >= windowLastRow || lastRow <= windowFirstRow) {
+            while (!window.isEmpty()) {
+                release(window.remove(window.size() - 1));
+            }
+            windowFirstRow = firstRow;
+            windowLastRow = firstRow;
+        }
+        while (windowFirstRow < firstRow) {
+            release(window.remove(0));
+            windowFirstRow++;
+        }
+        while (windowLastRow > lastRow) {
+            release(window.remove(window.size() - 1));
+            windowLastRow--;
+        }
+        int row = windowFirstRow;
+        for (LeafElement leaf : window) {
+            Bounds bounds = rowBounds(row++);
+            if (leaf.getBounds().y != bounds.y) {
+                leaf.setBounds(bounds);
+            }
+        }
+        while (windowFirstRow > firstRow) {
+            window.add(0, bind(--windowFirstRow));
+        }
+        while (windowLastRow < lastRow) {
+            window.add(bind(windowLastRow++));
+        }
+        markDirty();
+    }
+
+    private LeafElement bind(int row) {
+        LeafElement leaf = recycled.pollFirst();
+        if (leaf == null) {
+            leaf = new LeafElement(source.getRowName(row), rowBounds(row));
+        } else {
+            leaf.setName(source.getRowName(row));
+            leaf.setBounds(rowBounds(row));
+        }
+        leaf.setParent(this);
+        if (spatialIndex != null) {
+            spatialIndex.indexSubtree(leaf, true);
+        }
+        return leaf;
+    }
+
+    private void release(LeafElement leaf) {
+        leaf.setParent(null);
+        if (spatialIndex != null) {
+            spatialIndex.indexSubtree(leaf, false);
+        }
+        if (recycled.size() < poolCapacity) {
+            recycled.addLast(leaf);
+        }
+    }
+
+    private Bounds rowBounds(int row) {
+        return new Bounds(viewport.x, viewport.y + (row - firstRow) * rowHeight, viewport.width, rowHeight);
+    }
+}
+
 public class Main {
     public static void main(String[] args) {
         // Create individual UI elements
@@ -78,5 +1121,383 @@ public class Main {
 
         // Draw the entire GUI
         container.draw();
+
+        // Only the changed button is drawn again; clean subtrees are skipped
+        System.out.println();
+        button2.setName("Button 2 (pressed)");
+        container.draw();
+
+        // Walking the tree on a fork-join pool, keeping draw order
+        System.out.println();
+        UITreeTraversal traversal = new UITreeTraversal(ForkJoinPool.commonPool(), 64);
+        for (String line : traversal.mapOrdered(container, element -> "Visiting " + element.getName())) {
+            System.out.println(line);
+        }
+
+        // The same GUI in the flat, array-backed tree store
+        System.out.println();
+        FlatUITree flatTree = new FlatUITree("Container", 8);
+        flatTree.addElement(FlatUITree.ROOT, "Button 1", false);
+        int flatTextBox = flatTree.addElement(FlatUITree.ROOT, "Text Box 1", false);
+        int flatNested = flatTree.addElement(FlatUITree.ROOT, "Nested Container", true);
+        flatTree.addElement(flatNested, "Button 2", false);
+        flatTree.removeElement(flatTextBox);
+        flatTree.view(FlatUITree.ROOT).draw();
+
+        // A flat subtree shown inside an ordinary container; only the changed part is drawn again
+        System.out.println();
+        UIContainer window = new UIContainer("Window");
+        window.addElement(flatTree.view(flatNested));
+        window.draw();
+        flatTree.addElement(flatNested, "Button 3", false);
+        window.draw();
+
+        // Hit-testing through a spatial index kept in step with the tree
+        System.out.println();
+        button1.setBounds(new Bounds(10, 10, 80, 30));
+        textBox1.setBounds(new Bounds(10, 50, 200, 30));
+        SpatialIndex index = SpatialIndex.attach(container, new Bounds(0, 0, 1024, 768));
+        button2.setBounds(new Bounds(300, 10, 80, 30));
+        System.out.println("Element at (20, 60): " + index.queryPoint(20, 60).get(0).getName());
+        System.out.println("Element at (310, 20): " + index.queryPoint(310, 20).get(0).getName());
+        container.removeElement(textBox1);
+        System.out.println("Elements at (20, 60) after removal: " + index.queryPoint(20, 60).size());
+
+        // A list of a million rows, of which only the visible window exists as elements
+        System.out.println();
+        RowSource rows = new RowSource() {
+            @Override
+            public int getRowCount() {
+                return 1_000_000;
+            }
+
+            @Override
+            public String getRowName(int index) {
+                return "Row " + index;
+            }
+        };
+        VirtualizedList list = new VirtualizedList("Virtual List", rows, new Bounds(0, 0, 200, 60), 20);
+        list.draw();
+        list.scrollTo(1);
+        list.draw();
+        list.scrollTo(500_000);
+        list.draw();
+        System.out.println("Materialized elements: " + list.getMaterializedCount());
+    }
+}
+
+// Incremental draw cost against a full draw on a large tree. Output goes to a null stream so the benchmark
+// measures the traversal. Run with: java DirtyDrawBenchmark [leaves]
+class DirtyDrawBenchmark {
+    public static void main(String[] args) {
+        int leafCount = args.length > 0 ? Integer.parseInt(args[0]) : 300_000;
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        // 100 panels of 100 groups, each holding an equal share of the leaves
+        UIContainer root = new UIContainer("Root");
+        List<LeafElement> leaves = new ArrayList<>(leafCount);
+        for (int p = 0; p < 100; p++) {
+            UIContainer panel = new UIContainer("Panel " + p);
+            root.addElement(panel);
+            for (int g = 0; g < 100; g++) {
+                UIContainer group = new UIContainer("Group " + p + "." + g);
+                panel.addElement(group);
+                for (int l = 0; l < leafCount / 10_000; l++) {
+                    LeafElement leaf = new LeafElement("Leaf " + leaves.size());
+                    group.addElement(leaf);
+                    leaves.add(leaf);
+                }
+            }
+        }
+
+        for (int round = 0; round < 3; round++) {
+            for (LeafElement leaf : leaves) {
+                leaf.markDirty();
+            }
+            long start = System.nanoTime();
+            root.draw();
+            long fullNanos = System.nanoTime() - start;
+            console.printf("full draw of %d leaves: %8.2f ms%n", leaves.size(), fullNanos / 1e6);
+
+            Random random = new Random(round);
+            for (int changed : new int[] {1, 100, 10_000}) {
+                for (int i = 0; i < changed; i++) {
+                    leaves.get(random.nextInt(leaves.size())).markDirty();
+                }
+                start = System.nanoTime();
+                root.draw();
+                console.printf("    %6d changed: %8.3f ms%n", changed, (System.nanoTime() - start) / 1e6);
+            }
+        }
+        System.setOut(console);
+    }
+}
+
+// Speedup of UITreeTraversal over 1..N threads on wide, deep and skewed synthetic trees.
+// Run with: java TraversalBenchmark [elements]
+class TraversalBenchmark {
+    public static void main(String[] args) {
+        int elements = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        UIElement[] trees = {wide(elements), deep(elements), skewed(elements)};
+        String[] names = {"wide", "deep", "skewed"};
+        // A little work per element, standing in for layout and painting
+        Function<UIElement, Integer> work = element -> {
+            int hash = element.getName().hashCode();
+            for (int i = 0; i < 50; i++) {
+                hash = hash * 31 + i;
+            }
+            return hash;
+        };
+
+        for (int t = 0; t < trees.length; t++) {
+            long single = 0;
+            List<Integer> reference = null;
+            for (int threads = 1; threads <= Runtime.getRuntime().availableProcessors(); threads *= 2) {
+                ForkJoinPool pool = new ForkJoinPool(threads);
+                UITreeTraversal traversal = new UITreeTraversal(pool, 256);
+                long best = Long.MAX_VALUE;
+                List<Integer> results = null;
+                for (int run = 0; run < 5; run++) {
+                    long start = System.nanoTime();
+                    results = traversal.mapOrdered(trees[t], work);
+                    best = Math.min(best, System.nanoTime() - start);
+                }
+                if (threads == 1) {
+                    single = best;
+                    reference = results;
+                }
+                System.out.printf("%-6s %2d threads: %7.1f ms, speedup %.2fx, same order %b%n", names[t], threads,
+                        best / 1e6, (double) single / best, results.equals(reference));
+                pool.shutdown();
+            }
+        }
+    }
+
+    // One container holding containers of 1,000 leaves each
+    static UIElement wide(int elements) {
+        UIContainer root = new UIContainer("wide");
+        for (int c = 0; c < elements / 1_000; c++) {
+            UIContainer group = new UIContainer("group " + c);
+            for (int l = 0; l < 1_000; l++) {
+                group.addElement(new LeafElement("leaf " + c + "." + l));
+            }
+            root.addElement(group);
+        }
+        return root;
+    }
+
+    // A chain of containers, each with one leaf, far deeper than the call stack allows
+    static UIElement deep(int elements) {
+        UIContainer root = new UIContainer("deep");
+        UIContainer current = root;
+        for (int d = 0; d < elements / 2; d++) {
+            UIContainer next = new UIContainer("level " + d);
+            current.addElement(new LeafElement("leaf " + d));
+            current.addElement(next);
+            current = next;
+        }
+        return root;
+    }
+
+    // Most of the tree under the first child, the rest spread thinly
+    static UIElement skewed(int elements) {
+        UIContainer root = new UIContainer("skewed");
+        UIContainer heavy = (UIContainer) wide(elements * 9 / 10);
+        root.addElement(heavy);
+        for (int c = 0; c < elements / 10 / 10; c++) {
+            UIContainer light = new UIContainer("light " + c);
+            for (int l = 0; l < 9; l++) {
+                light.addElement(new LeafElement("leaf " + c + "." + l));
+            }
+            root.addElement(light);
+        }
+        return root;
+    }
+}
+
+// Memory and traversal time of the flat tree store against the UIContainer object graph.
+// Run with: java FlatTreeBenchmark [nodes]
+class FlatTreeBenchmark {
+    public static void main(String[] args) {
+        int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        String[] names = new String[nodes];
+        for (int i = 0; i < nodes; i++) {
+            names[i] = "node " + i;
+        }
+
+        long before = usedHeap();
+        UIContainer objectRoot = new UIContainer("root");
+        UIContainer group = objectRoot;
+        for (int i = 0; i < nodes; i++) {
+            if (i % 100 == 0) {
+                group = new UIContainer(names[i]);
+                objectRoot.addElement(group);
+            } else {
+                group.addElement(new LeafElement(names[i]));
+            }
+        }
+        long objectBytes = usedHeap() - before;
+
+        before = usedHeap();
+        FlatUITree flat = new FlatUITree("root", nodes + 1);
+        int flatGroup = FlatUITree.ROOT;
+        for (int i = 0; i < nodes; i++) {
+            if (i % 100 == 0) {
+                flatGroup = flat.addElement(FlatUITree.ROOT, names[i], true);
+            } else {
+                flat.addElement(flatGroup, names[i], false);
+            }
+        }
+        long flatBytes = usedHeap() - before;
+        System.out.printf("memory: object graph %5.1f bytes/node, flat store %5.1f bytes/node (names shared)%n",
+                (double) objectBytes / nodes, (double) flatBytes / nodes);
+
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            long objectSum = 0;
+            List<UIElement> stack = new ArrayList<>();
+            stack.add(objectRoot);
+            while (!stack.isEmpty()) {
+                UIElement element = stack.remove(stack.size() - 1);
+                objectSum += element.getName().length();
+                if (element instanceof UIContainer) {
+                    List<UIElement> children = ((UIContainer) element).getElements();
+                    for (int i = children.size() - 1; i >= 0; i--) {
+                        stack.add(children.get(i));
+                    }
+                }
+            }
+            long objectNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            long flatSum = 0;
+            for (int node = FlatUITree.ROOT; node != FlatUITree.NONE; node = flat.nextInPreOrder(node, FlatUITree.ROOT)) {
+                flatSum += flat.getName(node).length();
+            }
+            long flatNanos = System.nanoTime() - start;
+
+            System.out.printf("traversal: object graph %6.1f ms, flat store %6.1f ms (checksums %b)%n",
+                    objectNanos / 1e6, flatNanos / 1e6, objectSum == flatSum);
+        }
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
+
+// Point and rectangle queries through SpatialIndex against walking the whole tree, on 1M leaves.
+// Run with: java HitTestBenchmark [leaves] [queries]
+class HitTestBenchmark {
+    public static void main(String[] args) {
+        int leafCount = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int queries = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int worldSize = 65_536;
+        Random random = new Random(11);
+
+        UIContainer root = new UIContainer("root");
+        for (int g = 0; g < leafCount / 1_000; g++) {
+            UIContainer group = new UIContainer("group " + g);
+            for (int l = 0; l < 1_000; l++) {
+                group.addElement(new LeafElement("leaf", new Bounds(random.nextInt(worldSize - 64),
+                        random.nextInt(worldSize - 64), 8 + random.nextInt(56), 8 + random.nextInt(56))));
+            }
+            root.addElement(group);
+        }
+        long start = System.nanoTime();
+        SpatialIndex index = SpatialIndex.attach(root, new Bounds(0, 0, worldSize, worldSize));
+        System.out.printf("indexed %,d leaves in %.1f ms%n", index.size(), (System.nanoTime() - start) / 1e6);
+
+        for (int round = 0; round < 3; round++) {
+            long naiveHits = 0;
+            long indexedHits = 0;
+            long naiveNanos = 0;
+            long indexedNanos = 0;
+            for (int q = 0; q < queries; q++) {
+                int x = random.nextInt(worldSize);
+                int y = random.nextInt(worldSize);
+                start = System.nanoTime();
+                naiveHits += walk(root, x, y);
+                naiveNanos += System.nanoTime() - start;
+                start = System.nanoTime();
+                indexedHits += index.queryPoint(x, y).size();
+                indexedNanos += System.nanoTime() - start;
+            }
+            System.out.printf("point query: naive walk %9.1f us, index %6.2f us (hits %d / %d)%n",
+                    naiveNanos / 1e3 / queries, indexedNanos / 1e3 / queries, naiveHits, indexedHits);
+        }
+
+        start = System.nanoTime();
+        long hits = 0;
+        for (int q = 0; q < queries; q++) {
+            hits += index.queryRect(new Bounds(random.nextInt(worldSize - 1024), random.nextInt(worldSize - 1024), 1024, 1024)).size();
+        }
+        System.out.printf("1024 x 1024 rectangle query: index %.2f us, %.1f hits each%n",
+                (System.nanoTime() - start) / 1e3 / queries, (double) hits / queries);
+    }
+
+    private static int walk(UIElement element, int x, int y) {
+        int hits = 0;
+        if (element instanceof UIContainer) {
+            for (UIElement child : ((UIContainer) element).getElements()) {
+                hits += walk(child, x, y);
+            }
+        } else if (element.getBounds().contains(x, y)) {
+            hits++;
+        }
+        return hits;
+    }
+}
+
+// Scroll-and-draw cost of VirtualizedList for growing row counts, which should stay flat. Output goes
+// to a null stream so the benchmark measures the list. Run with: java VirtualListBenchmark [viewportRows]
+class VirtualListBenchmark {
+    public static void main(String[] args) {
+        int viewportRows = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        for (int round = 0; round < 3; round++) {
+            for (int rowCount : new int[] {1_000, 1_000_000, 1_000_000_000}) {
+                RowSource source = new RowSource() {
+                    @Override
+                    public int getRowCount() {
+                        return rowCount;
+                    }
+
+                    @Override
+                    public String getRowName(int index) {
+                        return "Row " + index;
+                    }
+                };
+                VirtualizedList list = new VirtualizedList("List", source,
+                        new Bounds(0, 0, 400, viewportRows * 20), 20);
+                list.draw();
+
+                int steps = 20_000;
+                Random random = new Random(round);
+                long start = System.nanoTime();
+                for (int i = 0; i < steps; i++) {
+                    int next = list.getFirstVisibleRow() + 1 + random.nextInt(3);
+                    list.scrollTo(next + viewportRows < rowCount ? next : 0);
+                    list.draw();
+                }
+                long scrollNanos = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (int i = 0; i < steps / 10; i++) {
+                    list.scrollTo(random.nextInt(rowCount));
+                    list.draw();
+                }
+                long jumpNanos = System.nanoTime() - start;
+                console.printf("%,13d rows: scroll+draw %6.2f us, jump+draw %6.2f us, %d elements alive%n",
+                        rowCount, scrollNanos / 1e3 / steps, jumpNanos / 1e3 / (steps / 10), list.getMaterializedCount());
+            }
+        }
+        System.setOut(console);
     }
 }
@@ -1,4 +1,15 @@
 import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
 
 // Author - Given Lepita
 /*
@@ -29,7 +40,7 @@ class SimpleCoffee implements Coffee {
 
 // Decorator Base Class
 abstract class CoffeeDecorator implements Coffee {
-    protected Coffee decoratedCoffee;
+    protected final Coffee decoratedCoffee;
 
     public CoffeeDecorator(Coffee decoratedCoffee) {
         this.decoratedCoffee = decoratedCoffee;
@@ -37,12 +48,21 @@ abstract class CoffeeDecorator implements Coffee {
 
     @Override
     public double getCost() {
-        return decoratedCoffee.getCost();
+        return decoratedCoffee.getCost() + getExtraCost();
     }
 
     @Override
     public String getDescription() {
-        return decoratedCoffee.getDescription();
+        return decoratedCoffee.getDescription() + getExtraDescription();
+    }
+
+    // What this decorator adds on top of the coffee it wraps
+    protected double getExtraCost() {
+        return 0.0;
+    }
+
+    protected String getExtraDescription() {
+        return "";
     }
 }
 
@@ -53,13 +73,13 @@ class MilkDecorator extends CoffeeDecorator {
     }
 
     @Override
-    public double getCost() {
-        return super.getCost() + 1.0;
+    protected double getExtraCost() {
+        return 1.0;
     }
 
     @Override
-    public String getDescription() {
-        return super.getDescription() + ", Milk";
+    protected String getExtraDescription() {
+        return ", Milk";
     }
 }
 
@@ -69,14 +89,512 @@ class CaramelDecorator extends CoffeeDecorator {
         super(decoratedCoffee);
     }
 
+    @Override
+    protected double getExtraCost() {
+        return 1.5;
+    }
+
+    @Override
+    protected String getExtraDescription() {
+        return ", Caramel";
+    }
+}
+
+// Flat, immutable form of a decorator chain. Walking a chain costs one call per layer, and each layer
+// concatenates its description again, so a deep chain pays O(depth) calls and O(depth^2) characters per
+// query. Freezing walks the chain once, adding the layers' extras from the inside out exactly as the chain
+// does, so the cost and description are identical to the live chain's and every later query is O(1).
+// A decorator that overrides getCost() or getDescription() itself, in the classic style, is not folded:
+// its public values are taken as they are, since they already cover everything it wraps.
+final class FrozenCoffee implements Coffee {
+    private static final ClassValue<Boolean> OVERRIDES_PUBLIC_METHODS = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            try {
+                return type.getMethod("getCost").getDeclaringClass() != CoffeeDecorator.class
+                        || type.getMethod("getDescription").getDeclaringClass() != CoffeeDecorator.class;
+            } catch (NoSuchMethodException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    private final double cost;
+    private final String description;
+    private final int layers;
+
+    private FrozenCoffee(double cost, String description, int layers) {
+        this.cost = cost;
+        this.description = description;
+        this.layers = layers;
+    }
+
+    // Freezing a chain built on top of a frozen coffee only walks the layers added since
+    public static FrozenCoffee of(Coffee coffee) {
+        if (coffee instanceof FrozenCoffee) {
+            return (FrozenCoffee) coffee;
+        }
+        List<CoffeeDecorator> chain = new ArrayList<>();
+        Coffee core = coffee;
+        while (core instanceof CoffeeDecorator && !OVERRIDES_PUBLIC_METHODS.get(core.getClass())) {
+            CoffeeDecorator decorator = (CoffeeDecorator) core;
+            chain.add(decorator);
+            core = decorator.decoratedCoffee;
+        }
+        int layers = chain.size();
+        String coreDescription = core.getDescription();
+        double cost = core.getCost();
+        if (core instanceof FrozenCoffee) {
+            layers += ((FrozenCoffee) core).layers;
+        }
+        StringBuilder description = new StringBuilder(coreDescription);
+        for (int i = chain.size() - 1; i >= 0; i--) {
+            cost += chain.get(i).getExtraCost();
+            description.append(chain.get(i).getExtraDescription());
+        }
+        return new FrozenCoffee(cost, description.toString(), layers);
+    }
+
     @Override
     public double getCost() {
-        return super.getCost() + 1.5;
+        return cost;
     }
 
     @Override
     public String getDescription() {
-        return super.getDescription() + ", Caramel";
+        return description;
+    }
+
+    // Number of decorators folded into this coffee
+    public int getLayers() {
+        return layers;
+    }
+}
+
+// Hash-consing factory for coffee orders. Structurally identical decorator stacks share one immutable
+// instance: each canonical layer is keyed by its decorator type and the identity of the canonical coffee it
+// wraps, so equal stacks resolve to the same object. Lookups are plain ConcurrentHashMap reads and never
+// block. Each entry keeps an approximate hit count; once the table grows past its capacity, one caller sweeps
+// it CLOCK-style, halving the counts and dropping entries that reach zero, so rare combinations are evicted
+// while the popular ones stay. An inner layer is looked up at least as often as any stack built on it, so
+// outer layers usually age out first; when an inner layer goes anyway, the layers built on it go with it.
+class CoffeeCanonicalizer {
+    private static final class Key {
+        final Class<?> type;
+        final Coffee inner;
+
+        Key(Class<?> type, Coffee inner) {
+            this.type = type;
+            this.inner = inner;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return type == key.type && inner == key.inner;
+        }
+
+        @Override
+        public int hashCode() {
+            return type.hashCode() * 31 + System.identityHashCode(inner);
+        }
+    }
+
+    private static final class Entry {
+        final Coffee coffee;
+        // Racy increments may lose counts; the count only steers eviction
+        int hits;
+
+        Entry(Coffee coffee) {
+            this.coffee = coffee;
+        }
+    }
+
+    private final Map<Class<?>, Function<Coffee, ? extends CoffeeDecorator>> factories = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Key, Entry> table = new ConcurrentHashMap<>();
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+    private final Coffee simpleCoffee = new SimpleCoffee();
+    private final int capacity;
+
+    public CoffeeCanonicalizer(int capacity) {
+        this.capacity = capacity;
+        register(MilkDecorator.class, MilkDecorator::new);
+        register(CaramelDecorator.class, CaramelDecorator::new);
+    }
+
+    // Decorator types without a registered factory are left as they are. The factory must return a new
+    // decorator of exactly this type around the coffee it is given; this is checked whenever it is called.
+    public <T extends CoffeeDecorator> void register(Class<T> type, Function<Coffee, ? extends T> factory) {
+        factories.put(type, factory);
+    }
+
+    public Coffee simple() {
+        return simpleCoffee;
+    }
+
+    // The canonical coffee made of the given canonical coffee with one more decorator on top
+    public Coffee with(Coffee canonicalInner, Class<? extends CoffeeDecorator> type) {
+        Key key = new Key(type, canonicalInner);
+        Entry entry = table.get(key);
+        if (entry == null) {
+            if (!factories.containsKey(type)) {
+                throw new IllegalArgumentException("No factory registered for " + type.getName());
+            }
+            entry = insert(key, new Entry(create(type, canonicalInner)));
+        }
+        entry.hits++;
+        return entry.coffee;
+    }
+
+    // The shared instance structurally identical to the given order. Layers that are already canonical
+    // are reused as they are, including the order's own objects when they are new to the table.
+    public Coffee canonical(Coffee order) {
+        if (order.getClass() == SimpleCoffee.class) {
+            return simpleCoffee;
+        }
+        if (!(order instanceof CoffeeDecorator) || !factories.containsKey(order.getClass())) {
+            return order;
+        }
+        List<CoffeeDecorator> layers = new ArrayList<>();
+        Coffee core = order;
+        while (core instanceof CoffeeDecorator && factories.containsKey(core.getClass())) {
+            layers.add((CoffeeDecorator) core);
+            core = ((CoffeeDecorator) core).decoratedCoffee;
+        }
+        // Only a plain SimpleCoffee is interchangeable with the shared one; a subclass keeps its own behavior
+        Coffee canonical = core.getClass() == SimpleCoffee.class ? simpleCoffee : core;
+        for (int i = layers.size() - 1; i >= 0; i--) {
+            CoffeeDecorator layer = layers.get(i);
+            Key key = new Key(layer.getClass(), canonical);
+            Entry entry = table.get(key);
+            if (entry == null) {
+                Coffee shared = layer.decoratedCoffee == canonical ? layer : create(layer.getClass(), canonical);
+                entry = insert(key, new Entry(shared));
+            }
+            entry.hits++;
+            canonical = entry.coffee;
+        }
+        return canonical;
+    }
+
+    public int size() {
+        return table.size();
+    }
+
+    private CoffeeDecorator create(Class<?> type, Coffee inner) {
+        CoffeeDecorator created = factories.get(type).apply(inner);
+        if (created == null || created.getClass() != type || created.decoratedCoffee != inner) {
+            throw new IllegalStateException("Factory for " + type.getName() + " must return a new "
+                    + type.getSimpleName() + " around the given coffee, but returned " + created);
+        }
+        return created;
+    }
+
+    private Entry insert(Key key, Entry entry) {
+        Entry existing = table.putIfAbsent(key, entry);
+        if (existing != null) {
+            return existing;
+        }
+        if (table.size() > capacity && sweeping.compareAndSet(false, true)) {
+            try {
+                sweep();
+            } finally {
+                sweeping.set(false);
+            }
+        }
+        return entry;
+    }
+
+    private void sweep() {
+        int target = capacity - capacity / 4;
+        for (int pass = 0; pass < 32 && table.size() > target; pass++) {
+            for (Iterator<Entry> it = table.values().iterator(); it.hasNext(); ) {
+                Entry entry = it.next();
+                if (entry.hits == 0) {
+                    it.remove();
+                } else {
+                    entry.hits >>>= 1;
+                }
+            }
+        }
+
+        // An entry whose inner layer is no longer canonical can never be hit again, and would keep the old
+        // inner instance alive. Dropping those may orphan the next layer up, so repeat until none are left.
+        boolean removed = true;
+        while (removed) {
+            removed = false;
+            for (Iterator<Key> it = table.keySet().iterator(); it.hasNext(); ) {
+                if (!isCanonical(it.next().inner)) {
+                    it.remove();
+                    removed = true;
+                }
+            }
+        }
+    }
+
+    // Cores that are not registered decorators are not kept in the table and count as canonical
+    private boolean isCanonical(Coffee coffee) {
+        if (!(coffee instanceof CoffeeDecorator) || !factories.containsKey(coffee.getClass())) {
+            return true;
+        }
+        Entry entry = table.get(new Key(coffee.getClass(), ((CoffeeDecorator) coffee).decoratedCoffee));
+        return entry != null && entry.coffee == coffee;
+    }
+}
+
+// A batch of coffee orders in compact form: each order is a base code followed by its add-on codes, all
+// packed into one byte array, with offsets marking where each order starts. Codes range from 0 to 255.
+// The batch also keeps which codes it uses as bases and which as add-ons, so an engine can check them
+// against its registry once per batch instead of once per code.
+class CoffeeOrderBatch {
+    static final int MAX_CODE = 255;
+
+    private byte[] codes = new byte[1024];
+    private int[] offsets = new int[257];
+    private int orderCount;
+    private int codeCount;
+    // One bit per code
+    private final long[] baseCodes = new long[(MAX_CODE + 1) / 64];
+    private final long[] addOnCodes = new long[(MAX_CODE + 1) / 64];
+
+    public void addOrder(int baseCode, int... addonCodes) {
+        checkCode(baseCode);
+        for (int addon : addonCodes) {
+            checkCode(addon);
+        }
+        ensureCapacity(1 + addonCodes.length);
+        codes[codeCount] = (byte) baseCode;
+        for (int i = 0; i < addonCodes.length; i++) {
+            codes[codeCount + 1 + i] = (byte) addonCodes[i];
+        }
+        commitOrder(1 + addonCodes.length);
+    }
+
+    // Makes room for an order of the given length and returns where its first code goes in codes(). The
+    // caller writes the codes in place; the order only joins the batch once commitOrder is called.
+    int reserveOrder(int length) {
+        ensureCapacity(length);
+        return codeCount;
+    }
+
+    void commitOrder(int length) {
+        int base = codes[codeCount] & 0xFF;
+        baseCodes[base >>> 6] |= 1L << base;
+        for (int c = codeCount + 1; c < codeCount + length; c++) {
+            int addon = codes[c] & 0xFF;
+            addOnCodes[addon >>> 6] |= 1L << addon;
+        }
+        codeCount += length;
+        offsets[++orderCount] = codeCount;
+    }
+
+    public int size() {
+        return orderCount;
+    }
+
+    byte[] codes() {
+        return codes;
+    }
+
+    int[] offsets() {
+        return offsets;
+    }
+
+    long[] baseCodes() {
+        return baseCodes;
+    }
+
+    long[] addOnCodes() {
+        return addOnCodes;
+    }
+
+    private static void checkCode(int code) {
+        if (code < 0 || code > MAX_CODE) {
+            throw new IllegalArgumentException("Order code out of range 0.." + MAX_CODE + ": " + code);
+        }
+    }
+
+    private void ensureCapacity(int extraCodes) {
+        if (codeCount + extraCodes > codes.length) {
+            codes = Arrays.copyOf(codes, Math.max(codes.length * 2, codeCount + extraCodes));
+        }
+        if (orderCount + 2 > offsets.length) {
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+        }
+    }
+}
+
+// Prices order batches in exact long cents from a code-indexed price table, with no objects or virtual calls
+// per order. Large batches are split by order range across a fork-join pool. Prices are registered from
+// the same numbers the Coffee classes return, so a priced order always agrees with getCost() of the
+// equivalent decorator chain. Registering is thread-safe and a code never changes once it is handed out,
+// so batches can be encoded and priced while more types are registered. Before a batch is priced, the codes
+// it uses are checked against the registry: every order must be a registered base coffee followed by
+// registered add-ons, or pricing fails naming the first bad order instead of pricing unknown codes at 0.
+class CoffeePricingEngine {
+    private static final int SPLIT_THRESHOLD = 1 << 14;
+
+    private final long[] centsByCode = new long[CoffeeOrderBatch.MAX_CODE + 1];
+    // Registered codes, one bit per code
+    private final long[] baseCodes = new long[(CoffeeOrderBatch.MAX_CODE + 1) / 64];
+    private final long[] addOnCodes = new long[(CoffeeOrderBatch.MAX_CODE + 1) / 64];
+    private final Map<Class<?>, Integer> codesByClass = new ConcurrentHashMap<>();
+    private final ForkJoinPool pool;
+    private int nextCode;
+
+    public CoffeePricingEngine(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    // The menu as the Coffee classes define it: Simple Coffee, Milk and Caramel. An add-on is priced at what
+    // it adds to getCost(), so decorators that override getCost() themselves are priced correctly too.
+    public static CoffeePricingEngine standard(ForkJoinPool pool) {
+        CoffeePricingEngine engine = new CoffeePricingEngine(pool);
+        Coffee base = new SimpleCoffee();
+        engine.register(SimpleCoffee.class, base.getCost());
+        engine.register(MilkDecorator.class, new MilkDecorator(base).getCost() - base.getCost());
+        engine.register(CaramelDecorator.class, new CaramelDecorator(base).getCost() - base.getCost());
+        return engine;
+    }
+
+    // Registers a base coffee or an add-on at the given price in dollars and returns its code. Decorator
+    // types are add-ons and every other type is a base. Each type can be registered once.
+    public synchronized int register(Class<? extends Coffee> type, double price) {
+        if (codesByClass.containsKey(type)) {
+            throw new IllegalArgumentException(type.getName() + " is already registered");
+        }
+        if (nextCode == centsByCode.length) {
+            throw new IllegalStateException("Price table is full");
+        }
+        int code = nextCode++;
+        centsByCode[code] = Math.round(price * 100);
+        long[] kind = CoffeeDecorator.class.isAssignableFrom(type) ? addOnCodes : baseCodes;
+        kind[code >>> 6] |= 1L << code;
+        codesByClass.put(type, code);
+        return code;
+    }
+
+    public int codeOf(Class<? extends Coffee> type) {
+        Integer code = codesByClass.get(type);
+        if (code == null) {
+            throw new IllegalArgumentException("No price registered for " + type.getName());
+        }
+        return code;
+    }
+
+    // Appends a decorator chain to the batch as base code followed by add-on codes, innermost first. The
+    // codes are written straight into the batch from the back, outermost layer first, so nothing is
+    // allocated per order; a chain with an unregistered type leaves the batch as it was.
+    public void encode(Coffee coffee, CoffeeOrderBatch batch) {
+        int length = 1;
+        for (Coffee layer = coffee; layer instanceof CoffeeDecorator; layer = ((CoffeeDecorator) layer).decoratedCoffee) {
+            length++;
+        }
+        int start = batch.reserveOrder(length);
+        byte[] codes = batch.codes();
+        int position = start + length;
+        while (coffee instanceof CoffeeDecorator) {
+            codes[--position] = (byte) codeOf(coffee.getClass());
+            coffee = ((CoffeeDecorator) coffee).decoratedCoffee;
+        }
+        codes[start] = (byte) codeOf(coffee.getClass());
+        batch.commitOrder(length);
+    }
+
+    // Total of every order in the batch, in cents
+    public long total(CoffeeOrderBatch batch) {
+        checkCodes(batch);
+        return pool.invoke(new PricingTask(batch, centsByCode, null, 0, batch.size()));
+    }
+
+    // Writes each order's price in cents to prices[0..batch.size()) and returns the total
+    public long priceEach(CoffeeOrderBatch batch, long[] prices) {
+        checkCodes(batch);
+        return pool.invoke(new PricingTask(batch, centsByCode, prices, 0, batch.size()));
+    }
+
+    // Fails unless every base code in the batch is a registered base and every add-on code a registered
+    // add-on. Only the bitmaps are compared; the orders are scanned just to report the first bad one.
+    private synchronized void checkCodes(CoffeeOrderBatch batch) {
+        long[] usedBases = batch.baseCodes();
+        long[] usedAddOns = batch.addOnCodes();
+        for (int i = 0; i < baseCodes.length; i++) {
+            if ((usedBases[i] & ~baseCodes[i]) != 0 || (usedAddOns[i] & ~addOnCodes[i]) != 0) {
+                throw invalidOrder(batch);
+            }
+        }
+    }
+
+    private IllegalArgumentException invalidOrder(CoffeeOrderBatch batch) {
+        byte[] codes = batch.codes();
+        int[] offsets = batch.offsets();
+        for (int order = 0; order < batch.size(); order++) {
+            for (int c = offsets[order]; c < offsets[order + 1]; c++) {
+                int code = codes[c] & 0xFF;
+                boolean base = (baseCodes[code >>> 6] & 1L << code) != 0;
+                boolean addOn = (addOnCodes[code >>> 6] & 1L << code) != 0;
+                if (!base && !addOn) {
+                    return new IllegalArgumentException("Order " + order + " has unregistered code " + code);
+                }
+                if (c == offsets[order] && !base) {
+                    return new IllegalArgumentException("Order " + order + " starts with add-on code " + code);
+                }
+                if (c > offsets[order] && !addOn) {
+                    return new IllegalArgumentException("Order " + order + " has base code " + code + " as an add-on");
+                }
+            }
+        }
+        return new IllegalArgumentException("Batch uses codes that are not registered as it uses them");
+    }
+
+    private static final class PricingTask extends RecursiveTask<Long> {
+        private static final long serialVersionUID = 1L;
+
+        private final CoffeeOrderBatch batch;
+        private final long[] centsByCode;
+        private final long[] prices;
+        private final int from;
+        private final int to;
+
+        PricingTask(CoffeeOrderBatch batch, long[] centsByCode, long[] prices, int from, int to) {
+            this.batch = batch;
+            this.centsByCode = centsByCode;
+            this.prices = prices;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Long compute() {
+            if (to - from > SPLIT_THRESHOLD) {
+                int middle = (from + to) >>> 1;
+                PricingTask right = new PricingTask(batch, centsByCode, prices, middle, to);
+                right.fork();
+                long left = new PricingTask(batch, centsByCode, prices, from, middle).compute();
+                return left + right.join();
+            }
+            byte[] codes = batch.codes();
+            int[] offsets = batch.offsets();
+            long total = 0;
+            if (prices == null) {
+                for (int c = offsets[from], end = offsets[to]; c < end; c++) {
+                    total += centsByCode[codes[c] & 0xFF];
+                }
+                return total;
+            }
+            for (int order = from; order < to; order++) {
+                long price = 0;
+                for (int c = offsets[order], end = offsets[order + 1]; c < end; c++) {
+                    price += centsByCode[codes[c] & 0xFF];
+                }
+                prices[order] = price;
+                total += price;
+            }
+            return total;
+        }
     }
 }
 
@@ -97,5 +615,212 @@ public class Main {
         Coffee coffeeWithMilkAndCaramel = new CaramelDecorator(new MilkDecorator(new SimpleCoffee()));
         System.out.println("\nOrder: " + coffeeWithMilkAndCaramel.getDescription());
         System.out.println("Cost: $" + new DecimalFormat("0.00").format(coffeeWithMilkAndCaramel.getCost()));
+
+        // The same order frozen into a flat coffee, priced and described without walking the chain
+        Coffee frozenOrder = FrozenCoffee.of(coffeeWithMilkAndCaramel);
+        System.out.println("\nFrozen order: " + frozenOrder.getDescription());
+        System.out.println("Cost: $" + new DecimalFormat("0.00").format(frozenOrder.getCost()));
+
+        // Identical orders share one canonical instance
+        CoffeeCanonicalizer canonicalizer = new CoffeeCanonicalizer(1024);
+        Coffee first = canonicalizer.canonical(new CaramelDecorator(new MilkDecorator(new SimpleCoffee())));
+        Coffee second = canonicalizer.with(canonicalizer.with(canonicalizer.simple(), MilkDecorator.class),
+                CaramelDecorator.class);
+        System.out.println("\nCanonical order: " + first.getDescription() + " (shared: " + (first == second) + ")");
+
+        // Pricing a batch of orders in exact cents
+        CoffeePricingEngine engine = CoffeePricingEngine.standard(ForkJoinPool.commonPool());
+        CoffeeOrderBatch batch = new CoffeeOrderBatch();
+        engine.encode(coffee, batch);
+        engine.encode(coffeeWithMilk, batch);
+        engine.encode(coffeeWithMilkAndCaramel, batch);
+        System.out.println("\nBatch of " + batch.size() + " orders: $" + new DecimalFormat("0.00").format(engine.total(batch) / 100.0));
+    }
+}
+
+// Cost of querying live decorator chains against their frozen form, for chain depths up to 10,000.
+// Run with: java DecoratorChainBenchmark
+class DecoratorChainBenchmark {
+    public static void main(String[] args) {
+        for (int round = 0; round < 2; round++) {
+            for (int depth : new int[] {1, 10, 100, 1_000, 10_000}) {
+                Coffee chain = new SimpleCoffee();
+                for (int i = 0; i < depth; i++) {
+                    chain = i % 3 == 2 ? new CaramelDecorator(chain) : new MilkDecorator(chain);
+                }
+                int queries = Math.max(20, 2_000_000 / depth / depth);
+
+                long start = System.nanoTime();
+                long sink = 0;
+                for (int q = 0; q < queries; q++) {
+                    sink += (long) chain.getCost() + chain.getDescription().length();
+                }
+                double liveNanos = (System.nanoTime() - start) / (double) queries;
+
+                start = System.nanoTime();
+                FrozenCoffee frozen = FrozenCoffee.of(chain);
+                double freezeNanos = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (int q = 0; q < queries; q++) {
+                    sink -= (long) frozen.getCost() + frozen.getDescription().length();
+                }
+                double frozenNanos = (System.nanoTime() - start) / (double) queries;
+
+                if (sink != 0 || frozen.getCost() != chain.getCost()
+                        || !frozen.getDescription().equals(chain.getDescription())) {
+                    throw new AssertionError("Frozen chain of depth " + depth + " differs from the live chain");
+                }
+                System.out.printf("depth %6d: live %14.1f ns/query, frozen %5.1f ns/query, freeze once %12.1f ns%n",
+                        depth, liveNanos, frozenNanos, freezeNanos);
+            }
+        }
+    }
+}
+
+// Heap held by a day's worth of orders, kept as individually allocated decorator stacks and as canonical
+// instances, plus lookup throughput across threads. Orders follow a Zipf distribution over a few hundred
+// combinations with a long tail of rare ones. Run with: java CanonicalCoffeeBenchmark [orders] [threads]
+class CanonicalCoffeeBenchmark {
+    public static void main(String[] args) throws InterruptedException {
+        int orderCount = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+        // Combination c is encoded in binary below its leading one bit: 0 adds milk, 1 adds caramel
+        int combinations = 1 << 10;
+        double[] cumulative = new double[combinations];
+        double total = 0;
+        for (int c = 1; c < combinations; c++) {
+            total += 1.0 / c;
+            cumulative[c] = total;
+        }
+        Random random = new Random(3);
+        int[] combination = new int[orderCount];
+        for (int i = 0; i < orderCount; i++) {
+            double u = random.nextDouble() * total;
+            int c = Arrays.binarySearch(cumulative, u);
+            combination[i] = Math.max(1, c < 0 ? -c - 1 : c);
+        }
+
+        long baseline = usedHeap();
+        Coffee[] orders = new Coffee[orderCount];
+        for (int i = 0; i < orderCount; i++) {
+            orders[i] = build(combination[i]);
+        }
+        long allocatedBytes = usedHeap() - baseline;
+
+        CoffeeCanonicalizer canonicalizer = new CoffeeCanonicalizer(512);
+        for (int i = 0; i < orderCount; i++) {
+            orders[i] = canonicalizer.canonical(orders[i]);
+        }
+        long canonicalBytes = usedHeap() - baseline;
+        for (int i = 0; i < orderCount; i++) {
+            Coffee expected = build(combination[i]);
+            if (orders[i].getCost() != expected.getCost() || !orders[i].getDescription().equals(expected.getDescription())) {
+                throw new AssertionError("Canonical order " + i + " differs from its original");
+            }
+        }
+        System.out.printf("%,d orders: %,d KB as allocated stacks, %,d KB canonical (%d shared combinations)%n",
+                orderCount, allocatedBytes / 1024, canonicalBytes / 1024, canonicalizer.size());
+        orders = null;
+
+        for (int round = 0; round < 3; round++) {
+            CoffeeCanonicalizer shared = new CoffeeCanonicalizer(512);
+            Thread[] workers = new Thread[threads];
+            long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                int offset = t;
+                workers[t] = new Thread(() -> {
+                    long sink = 0;
+                    for (int i = offset; i < orderCount; i += threads) {
+                        sink += shared.canonical(build(combination[i])).hashCode();
+                    }
+                    if (sink == 42) {
+                        System.out.println();
+                    }
+                });
+                workers[t].start();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%d threads: %.1f M canonical lookups/s%n", threads, orderCount / seconds / 1e6);
+        }
+    }
+
+    private static Coffee build(int combination) {
+        Coffee coffee = new SimpleCoffee();
+        for (int bit = 31 - Integer.numberOfLeadingZeros(combination) - 1; bit >= 0; bit--) {
+            coffee = (combination >>> bit & 1) == 0 ? new MilkDecorator(coffee) : new CaramelDecorator(coffee);
+        }
+        return coffee;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
+
+// Throughput of pricing orders through getCost() on decorator chains against CoffeePricingEngine on the
+// same orders in compact form, single-threaded and on the fork-join pool. Also checks that every order's
+// price agrees with getCost(). Run with: java PricingEngineBenchmark [orders]
+class PricingEngineBenchmark {
+    public static void main(String[] args) {
+        int orderCount = args.length > 0 ? Integer.parseInt(args[0]) : 5_000_000;
+        Random random = new Random(5);
+        CoffeeCanonicalizer canonicalizer = new CoffeeCanonicalizer(4096);
+        Coffee[] orders = new Coffee[orderCount];
+        for (int i = 0; i < orderCount; i++) {
+            Coffee coffee = canonicalizer.simple();
+            for (int addons = random.nextInt(6); addons > 0; addons--) {
+                coffee = canonicalizer.with(coffee, random.nextBoolean() ? MilkDecorator.class : CaramelDecorator.class);
+            }
+            orders[i] = coffee;
+        }
+        CoffeePricingEngine parallel = CoffeePricingEngine.standard(ForkJoinPool.commonPool());
+        CoffeePricingEngine single = CoffeePricingEngine.standard(new ForkJoinPool(1));
+        CoffeeOrderBatch batch = new CoffeeOrderBatch();
+        for (Coffee order : orders) {
+            parallel.encode(order, batch);
+        }
+
+        long[] prices = new long[orderCount];
+        long exact = parallel.priceEach(batch, prices);
+        for (int i = 0; i < orderCount; i++) {
+            if (prices[i] != Math.round(orders[i].getCost() * 100)) {
+                throw new AssertionError("Order " + i + " priced at " + prices[i] + " cents, getCost() says " + orders[i].getCost());
+            }
+        }
+        double doubleTotal = 0;
+        for (Coffee order : orders) {
+            doubleTotal += order.getCost();
+        }
+        System.out.printf("%,d orders: exact total %,d cents, summed doubles %.6f%n", orderCount, exact, doubleTotal);
+
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            double sum = 0;
+            for (Coffee order : orders) {
+                sum += order.getCost();
+            }
+            double virtualSeconds = (System.nanoTime() - start) / 1e9;
+            start = System.nanoTime();
+            long singleTotal = single.total(batch);
+            double singleSeconds = (System.nanoTime() - start) / 1e9;
+            start = System.nanoTime();
+            long parallelTotal = parallel.priceEach(batch, prices);
+            double parallelSeconds = (System.nanoTime() - start) / 1e9;
+            if (singleTotal != exact || parallelTotal != exact || sum == 0) {
+                throw new AssertionError("Totals differ between runs");
+            }
+            System.out.printf("getCost() %6.1f M orders/s, engine total 1 thread %6.1f M orders/s, "
+                    + "engine per-order %d threads %6.1f M orders/s%n",
+                    orderCount / virtualSeconds / 1e6, orderCount / singleSeconds / 1e6,
+                    ForkJoinPool.commonPool().getParallelism(), orderCount / parallelSeconds / 1e6);
+        }
     }
 }